@@ -0,0 +1,205 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.CellStyle;
+
+import java.util.Arrays;
+
+/**
+ * A block of rows given as one array of values per column.
+ * <p>
+ * A batch is written with {@link StreamSheet#writeBatch(int, ColumnBatch)}, which
+ * encodes the values straight from the arrays without creating rows or cells.
+ * The arrays are referenced, not copied, so a batch can be refilled and written
+ * again for the next block of rows.
+ * </p>
+ * <pre>
+ * ColumnBatch batch = new ColumnBatch(ids.length);
+ * batch.addColumn(0, ids, null);
+ * batch.addColumn(1, names, null);
+ * batch.addColumn(2, amounts, amountStyle);
+ * sheet.writeBatch(1, batch);
+ * </pre>
+ * <p>
+ * Columns have to be added in ascending column order. <code>null</code> strings
+ * and <code>NaN</code> numbers leave their cell out, infinite numbers are
+ * written as <code>#DIV/0!</code> errors like {@link StreamCell#setCellValue(double)} does.
+ * </p>
+ */
+public final class ColumnBatch
+{
+    static final byte DOUBLES=0;
+    static final byte LONGS=1;
+    static final byte STRINGS=2;
+    static final byte BOOLEANS=3;
+
+    int _rowCount;
+    int _columnCount;
+    int[] _columns=new int[8];
+    byte[] _kinds=new byte[8];
+    Object[] _values=new Object[8];
+    short[] _styles=new short[8];
+
+    /**
+     * @param rowCount the number of rows of the batch, every column needs at
+     *                 least as many values
+     */
+    public ColumnBatch(int rowCount)
+    {
+        if(rowCount<0)
+        {
+            throw new IllegalArgumentException("Row count must not be negative: " + rowCount);
+        }
+        _rowCount=rowCount;
+    }
+
+    /**
+     * @return the number of rows of the batch
+     */
+    public int getRowCount()
+    {
+        return _rowCount;
+    }
+
+    /**
+     * Changes the number of rows, e.g. for the last and shorter block of an export.
+     *
+     * @param rowCount the number of rows of the batch
+     * @throws IllegalArgumentException if a column has fewer values
+     */
+    public void setRowCount(int rowCount)
+    {
+        if(rowCount<0)
+        {
+            throw new IllegalArgumentException("Row count must not be negative: " + rowCount);
+        }
+        for(int i=0;i<_columnCount;i++)
+        {
+            checkLength(_columns[i],lengthOf(_kinds[i],_values[i]),rowCount);
+        }
+        _rowCount=rowCount;
+    }
+
+    /**
+     * @return the number of columns added
+     */
+    public int getColumnCount()
+    {
+        return _columnCount;
+    }
+
+    /**
+     * Adds a column of numbers.
+     *
+     * @param column the 0-based column index in the sheet
+     * @param values the values, <code>NaN</code> for no cell, infinities are written as <code>#DIV/0!</code>
+     * @param style  the style of the cells, <code>null</code> for the default style
+     */
+    public void addColumn(int column, double[] values, CellStyle style)
+    {
+        add(column,DOUBLES,values,values.length,style);
+    }
+
+    /**
+     * Adds a column of whole numbers. Excel holds numbers as <code>double</code>,
+     * values beyond 2^53 lose precision when the file is read.
+     *
+     * @param column the 0-based column index in the sheet
+     * @param values the values
+     * @param style  the style of the cells, <code>null</code> for the default style
+     */
+    public void addColumn(int column, long[] values, CellStyle style)
+    {
+        add(column,LONGS,values,values.length,style);
+    }
+
+    /**
+     * Adds a column of inline strings.
+     *
+     * @param column the 0-based column index in the sheet
+     * @param values the values, <code>null</code> for no cell
+     * @param style  the style of the cells, <code>null</code> for the default style
+     */
+    public void addColumn(int column, String[] values, CellStyle style)
+    {
+        add(column,STRINGS,values,values.length,style);
+    }
+
+    /**
+     * Adds a column of booleans.
+     *
+     * @param column the 0-based column index in the sheet
+     * @param values the values
+     * @param style  the style of the cells, <code>null</code> for the default style
+     */
+    public void addColumn(int column, boolean[] values, CellStyle style)
+    {
+        add(column,BOOLEANS,values,values.length,style);
+    }
+
+    private void add(int column, byte kind, Object values, int length, CellStyle style)
+    {
+        int maxColumn=SpreadsheetVersion.EXCEL2007.getLastColumnIndex();
+        if(column<0||column>maxColumn)
+        {
+            throw new IllegalArgumentException("Invalid column index (" + column
+                    + ").  Allowable column range for EXCEL2007 is (0.." + maxColumn + ")");
+        }
+        if(_columnCount>0&&column<=_columns[_columnCount-1])
+        {
+            throw new IllegalArgumentException("Column " + column + " has to be greater than the last column "
+                    + _columns[_columnCount-1]);
+        }
+        checkLength(column,length,_rowCount);
+        if(_columnCount==_columns.length)
+        {
+            int size=_columnCount*2;
+            _columns=Arrays.copyOf(_columns,size);
+            _kinds=Arrays.copyOf(_kinds,size);
+            _values=Arrays.copyOf(_values,size);
+            _styles=Arrays.copyOf(_styles,size);
+        }
+        _columns[_columnCount]=column;
+        _kinds[_columnCount]=kind;
+        _values[_columnCount]=values;
+        _styles[_columnCount]=style==null?0:style.getIndex();
+        _columnCount++;
+    }
+
+    private static void checkLength(int column, int length, int rowCount)
+    {
+        if(length<rowCount)
+        {
+            throw new IllegalArgumentException("Column " + column + " has " + length
+                    + " values, the batch has " + rowCount + " rows");
+        }
+    }
+
+    private static int lengthOf(byte kind, Object values)
+    {
+        switch(kind)
+        {
+            case DOUBLES: return ((double[])values).length;
+            case LONGS: return ((long[])values).length;
+            case BOOLEANS: return ((boolean[])values).length;
+            default: return ((String[])values).length;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declares the type, style, width and header label of the columns of a sheet.
+ * <p>
+ * When the schema is set with {@link StreamSheet#setColumnSchema(ColumnSchema)},
+ * the start tag of every declared column is encoded once. Cells whose type matches
+ * the declared type and that have the default style or the column's style are then
+ * written by copying that tag, in the column's style; other cells of the column,
+ * such as blank cells or a header label, are written as usual.
+ * </p>
+ * <pre>
+ * ColumnSchema schema = new ColumnSchema();
+ * schema.addColumn(0, Cell.CELL_TYPE_NUMERIC).setHeader("Id");
+ * schema.addColumn(1, Cell.CELL_TYPE_STRING).setHeader("Name").setWidth(30 * 256);
+ * schema.addColumn(2, Cell.CELL_TYPE_NUMERIC).setHeader("Amount").setDataFormat("#,##0.00");
+ * sheet.setColumnSchema(schema);
+ * sheet.createHeaderRow(0);
+ * </pre>
+ */
+public final class ColumnSchema
+{
+    private final List<Column> _columns=new ArrayList<Column>();
+    private CellStyle _headerStyle;
+
+    /**
+     * Declares a column.
+     *
+     * @param column   the 0-based column index
+     * @param cellType {@link Cell#CELL_TYPE_NUMERIC}, {@link Cell#CELL_TYPE_STRING}
+     *                 or {@link Cell#CELL_TYPE_BOOLEAN}
+     * @return the column, to set its style, width and header
+     * @throws IllegalArgumentException if the column is out of range or declared
+     *         already, or the type is not one of the above
+     */
+    public Column addColumn(int column, int cellType)
+    {
+        int maxColumn=SpreadsheetVersion.EXCEL2007.getLastColumnIndex();
+        if(column<0||column>maxColumn)
+        {
+            throw new IllegalArgumentException("Invalid column index (" + column
+                    + ").  Allowable column range for EXCEL2007 is (0.." + maxColumn + ")");
+        }
+        if(cellType!=Cell.CELL_TYPE_NUMERIC&&cellType!=Cell.CELL_TYPE_STRING&&cellType!=Cell.CELL_TYPE_BOOLEAN)
+        {
+            throw new IllegalArgumentException("Illegal column type " + cellType);
+        }
+        if(getColumn(column)!=null)
+        {
+            throw new IllegalArgumentException("Column " + column + " is declared already");
+        }
+        Column c=new Column(column,cellType);
+        _columns.add(c);
+        return c;
+    }
+
+    /**
+     * @param column the 0-based column index
+     * @return the declared column, <code>null</code> if the column is not declared
+     */
+    public Column getColumn(int column)
+    {
+        for(Column c : _columns)
+        {
+            if(c._index==column) return c;
+        }
+        return null;
+    }
+
+    /**
+     * @return the declared columns in the order they were added
+     */
+    public List<Column> getColumns()
+    {
+        return _columns;
+    }
+
+    /**
+     * @param style the style of the cells created by {@link StreamSheet#createHeaderRow(int)},
+     *              <code>null</code> for the default style
+     */
+    public void setHeaderStyle(CellStyle style)
+    {
+        _headerStyle=style;
+    }
+
+    public CellStyle getHeaderStyle()
+    {
+        return _headerStyle;
+    }
+
+    /**
+     * A declared column.
+     */
+    public static final class Column
+    {
+        final int _index;
+        final int _type;
+        CellStyle _style;
+        String _dataFormat;
+        String _header;
+        int _width=-1;
+
+        Column(int index, int type)
+        {
+            _index=index;
+            _type=type;
+        }
+
+        /**
+         * @return the 0-based column index
+         */
+        public int getColumnIndex()
+        {
+            return _index;
+        }
+
+        /**
+         * @return the declared cell type
+         */
+        public int getCellType()
+        {
+            return _type;
+        }
+
+        /**
+         * @param style the style of the column's cells, <code>null</code> for the default style
+         * @return this column
+         */
+        public Column setStyle(CellStyle style)
+        {
+            _style=style;
+            return this;
+        }
+
+        public CellStyle getStyle()
+        {
+            return _style;
+        }
+
+        /**
+         * Sets the number format of the column. A style with this format, based on
+         * the column's style if any, is created when the schema is set on a sheet.
+         *
+         * @param format a number format such as <code>"#,##0.00"</code>
+         * @return this column
+         */
+        public Column setDataFormat(String format)
+        {
+            _dataFormat=format;
+            return this;
+        }
+
+        public String getDataFormat()
+        {
+            return _dataFormat;
+        }
+
+        /**
+         * @param header the label written by {@link StreamSheet#createHeaderRow(int)}
+         * @return this column
+         */
+        public Column setHeader(String header)
+        {
+            _header=header;
+            return this;
+        }
+
+        public String getHeader()
+        {
+            return _header;
+        }
+
+        /**
+         * @param width the width in units of 1/256th of a character width, -1 to keep the default
+         * @return this column
+         * @see StreamSheet#setColumnWidth(int, int)
+         */
+        public Column setWidth(int width)
+        {
+            _width=width;
+            return this;
+        }
+
+        public int getWidth()
+        {
+            return _width;
+        }
+    }
+}
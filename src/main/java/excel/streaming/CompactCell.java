@@ -0,0 +1,422 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.ss.formula.FormulaParseException;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * View of a cell held in the compact storage of a {@link StreamRow}.
+ * <p>
+ * Views are created on demand and hold no value of their own, every call reads
+ * or writes the parallel arrays of the row. Plain values (numbers, strings,
+ * booleans, errors and blanks) and the style are kept in the arrays. Setting a
+ * formula, rich text, a comment or a hyperlink moves the cell into a full
+ * {@link StreamCell}, which the view delegates to from then on.
+ * </p>
+ *
+ * @see StreamSheet#setCompactCellStorage(boolean)
+ */
+class CompactCell implements Cell
+{
+    final StreamRow _row;
+    final int _column;
+
+    CompactCell(StreamRow row, int column)
+    {
+        _row=row;
+        _column=column;
+    }
+
+    /**
+     * @return the full cell this cell was moved into, <code>null</code> if it is still compact
+     */
+    private StreamCell full()
+    {
+        return _row._types[_column]==StreamRow.PROMOTED?_row._cells[_column]:null;
+    }
+
+    StreamCell promote()
+    {
+        return _row.promote(_column);
+    }
+
+    private int type()
+    {
+        return _row._types[_column]-1;
+    }
+
+    private void setType(int type)
+    {
+        _row._types[_column]=(byte)(type+1);
+    }
+
+//start of interface implementation
+    public int getColumnIndex()
+    {
+        return _column;
+    }
+
+    public int getRowIndex()
+    {
+        return _row.getRowNum();
+    }
+
+    public Sheet getSheet()
+    {
+        return _row.getSheet();
+    }
+
+    public Row getRow()
+    {
+        return _row;
+    }
+
+    public void setCellType(int cellType)
+    {
+        StreamCell full=full();
+        if(full==null)
+        {
+            if(type()==cellType) return;
+            if(cellType==CELL_TYPE_BLANK||cellType==CELL_TYPE_NUMERIC||cellType==CELL_TYPE_ERROR)
+            {
+                // the value is reset, as by StreamCell
+                setType(cellType);
+                _row._numbers[_column]=0;
+                _row.setCompactString(_column,null);
+                return;
+            }
+        }
+        // value conversions and formulas are left to the full cell
+        (full!=null?full:promote()).setCellType(cellType);
+    }
+
+    public int getCellType()
+    {
+        StreamCell full=full();
+        return full!=null?full.getCellType():type();
+    }
+
+    public int getCachedFormulaResultType()
+    {
+        StreamCell full=full();
+        if(full==null) throw new IllegalStateException("Only formula cells have cached results");
+        return full.getCachedFormulaResultType();
+    }
+
+    public void setCellValue(double value)
+    {
+        StreamCell full=full();
+        if(full!=null)
+        {
+            full.setCellValue(value);
+        }
+        else if(Double.isInfinite(value))
+        {
+            // Excel does not support positive/negative infinities,
+            // rather, it gives a #DIV/0! error in these cases.
+            setCellErrorValue(FormulaError.DIV0.getCode());
+        }
+        else if(Double.isNaN(value))
+        {
+            setCellErrorValue(FormulaError.NUM.getCode());
+        }
+        else
+        {
+            setType(CELL_TYPE_NUMERIC);
+            _row._numbers[_column]=value;
+            _row.setCompactString(_column,null);
+        }
+    }
+
+    public void setCellValue(long value)
+    {
+        StreamCell full=full();
+        if(full!=null)
+        {
+            full.setCellValue(value);
+            return;
+        }
+        setType(CELL_TYPE_NUMERIC);
+        _row._numbers[_column]=value;
+        _row.setCompactString(_column,null);
+    }
+
+    public void setCellValue(Date value)
+    {
+        setCellValue(DateUtil.getExcelDate(value, false));
+    }
+
+    public void setCellValue(Calendar value)
+    {
+        setCellValue(DateUtil.getExcelDate(value, false));
+    }
+
+    public void setCellValue(RichTextString value)
+    {
+        StreamCell full=full();
+        (full!=null?full:promote()).setCellValue(value);
+    }
+
+    public void setCellValue(String value)
+    {
+        StreamCell full=full();
+        if(full!=null)
+        {
+            full.setCellValue(value);
+            return;
+        }
+        setType(CELL_TYPE_STRING);
+        _row.setCompactString(_column,value);
+    }
+
+    public void setCellFormula(String formula) throws FormulaParseException
+    {
+        StreamCell full=full();
+        if(full==null&&formula==null)
+        {
+            setCellType(CELL_TYPE_BLANK);
+            return;
+        }
+        (full!=null?full:promote()).setCellFormula(formula);
+    }
+
+    public String getCellFormula()
+    {
+        StreamCell full=full();
+        if(full==null) throw StreamCell.typeMismatch(CELL_TYPE_FORMULA,type(),false);
+        return full.getCellFormula();
+    }
+
+    public double getNumericCellValue()
+    {
+        StreamCell full=full();
+        if(full!=null) return full.getNumericCellValue();
+        int cellType=type();
+        switch(cellType)
+        {
+            case CELL_TYPE_BLANK:
+                return 0.0;
+            case CELL_TYPE_NUMERIC:
+                return _row._numbers[_column];
+            default:
+                throw StreamCell.typeMismatch(CELL_TYPE_NUMERIC,cellType,false);
+        }
+    }
+
+    public Date getDateCellValue()
+    {
+        if(getCellType()==CELL_TYPE_BLANK) return null;
+        return DateUtil.getJavaDate(getNumericCellValue(), false);
+    }
+
+    public RichTextString getRichStringCellValue()
+    {
+        StreamCell full=full();
+        if(full!=null) return full.getRichStringCellValue();
+        int cellType=type();
+        if(cellType!=CELL_TYPE_STRING)
+            throw StreamCell.typeMismatch(CELL_TYPE_STRING,cellType,false);
+        return getSheet().getWorkbook().getCreationHelper().createRichTextString(getStringCellValue());
+    }
+
+    public String getStringCellValue()
+    {
+        StreamCell full=full();
+        if(full!=null) return full.getStringCellValue();
+        int cellType=type();
+        switch(cellType)
+        {
+            case CELL_TYPE_BLANK:
+                return "";
+            case CELL_TYPE_STRING:
+                return _row._strings==null?null:_row._strings[_column];
+            default:
+                throw StreamCell.typeMismatch(CELL_TYPE_STRING,cellType,false);
+        }
+    }
+
+    public void setCellValue(boolean value)
+    {
+        StreamCell full=full();
+        if(full!=null)
+        {
+            full.setCellValue(value);
+            return;
+        }
+        setType(CELL_TYPE_BOOLEAN);
+        _row._numbers[_column]=value?1:0;
+        _row.setCompactString(_column,null);
+    }
+
+    public void setCellErrorValue(byte value)
+    {
+        StreamCell full=full();
+        if(full!=null)
+        {
+            full.setCellErrorValue(value);
+            return;
+        }
+        setType(CELL_TYPE_ERROR);
+        _row._numbers[_column]=value;
+        _row.setCompactString(_column,null);
+    }
+
+    public boolean getBooleanCellValue()
+    {
+        StreamCell full=full();
+        if(full!=null) return full.getBooleanCellValue();
+        int cellType=type();
+        switch(cellType)
+        {
+            case CELL_TYPE_BLANK:
+                return false;
+            case CELL_TYPE_BOOLEAN:
+                return _row._numbers[_column]!=0;
+            default:
+                throw StreamCell.typeMismatch(CELL_TYPE_BOOLEAN,cellType,false);
+        }
+    }
+
+    public byte getErrorCellValue()
+    {
+        StreamCell full=full();
+        if(full!=null) return full.getErrorCellValue();
+        int cellType=type();
+        switch(cellType)
+        {
+            case CELL_TYPE_BLANK:
+                return 0;
+            case CELL_TYPE_ERROR:
+                return (byte)_row._numbers[_column];
+            default:
+                throw StreamCell.typeMismatch(CELL_TYPE_ERROR,cellType,false);
+        }
+    }
+
+    public void setCellStyle(CellStyle style)
+    {
+        StreamCell full=full();
+        if(full!=null)
+            full.setCellStyle(style);
+        else
+            _row._styles[_column]=style==null?0:style.getIndex();
+    }
+
+    public CellStyle getCellStyle()
+    {
+        StreamCell full=full();
+        if(full!=null) return full.getCellStyle();
+        return getSheet().getWorkbook().getCellStyleAt(_row._styles[_column]);
+    }
+
+    public void setAsActiveCell()
+    {
+    }
+
+    public void setCellComment(Comment comment)
+    {
+        StreamCell full=full();
+        (full!=null?full:promote()).setCellComment(comment);
+    }
+
+    public Comment getCellComment()
+    {
+        StreamCell full=full();
+        return full!=null?full.getCellComment():null;
+    }
+
+    public void removeCellComment()
+    {
+        StreamCell full=full();
+        if(full!=null) full.removeCellComment();
+    }
+
+    public Hyperlink getHyperlink()
+    {
+        StreamCell full=full();
+        return full!=null?full.getHyperlink():null;
+    }
+
+    public void setHyperlink(Hyperlink link)
+    {
+        StreamCell full=full();
+        (full!=null?full:promote()).setHyperlink(link);
+    }
+
+    public CellRangeAddress getArrayFormulaRange()
+    {
+        return null;
+    }
+
+    public boolean isPartOfArrayFormulaGroup()
+    {
+        return false;
+    }
+//end of interface implementation
+
+    /**
+     * Views of the same cell are equal.
+     */
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof CompactCell)) return false;
+        CompactCell other=(CompactCell)o;
+        return other._row==_row&&other._column==_column;
+    }
+
+    public int hashCode()
+    {
+        return System.identityHashCode(_row)*31+_column;
+    }
+
+    /**
+     * Returns a string representation of the cell, see {@link StreamCell#toString()}.
+     */
+    public String toString()
+    {
+        StreamCell full=full();
+        if(full!=null) return full.toString();
+        switch(type())
+        {
+            case CELL_TYPE_BLANK:
+                return "";
+            case CELL_TYPE_BOOLEAN:
+                return getBooleanCellValue() ? "TRUE" : "FALSE";
+            case CELL_TYPE_ERROR:
+                return ErrorEval.getText(getErrorCellValue());
+            case CELL_TYPE_NUMERIC:
+                if (DateUtil.isCellDateFormatted(this)) {
+                    DateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy");
+                    return sdf.format(getDateCellValue());
+                }
+                return getNumericCellValue() + "";
+            case CELL_TYPE_STRING:
+                return getRichStringCellValue().toString();
+            default:
+                return "Unknown Cell Type: " + getCellType();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.util.zip.Deflater;
+
+/**
+ * How the entries of the written package are compressed.
+ *
+ * @see StreamWorkbook#setCompressionProfile(CompressionProfile)
+ */
+public enum CompressionProfile
+{
+    /**
+     * No compression. Parts known in advance are stored, worksheets are written
+     * as uncompressed deflate blocks because their size is not known up front.
+     */
+    STORED(Deflater.NO_COMPRESSION),
+    /** Fastest deflate level, trades size for speed */
+    FASTEST(Deflater.BEST_SPEED),
+    /** The default deflate level, as used by <code>ZipOutputStream</code> */
+    DEFAULT(Deflater.DEFAULT_COMPRESSION),
+    /** Best deflate level, trades speed for size */
+    MAX(Deflater.BEST_COMPRESSION),
+    /**
+     * Worksheets start with the fastest level. The throughput and compressibility
+     * of the first rows are sampled and the level is raised or lowered to come close
+     * to {@link StreamWorkbook#setAdaptiveCompressionTarget(double)}.
+     */
+    ADAPTIVE(Deflater.BEST_SPEED);
+
+    final int _level;
+
+    CompressionProfile(int level)
+    {
+        _level=level;
+    }
+}
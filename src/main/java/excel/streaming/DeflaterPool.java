@@ -0,0 +1,74 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Process wide pool of raw (<code>nowrap</code>) deflaters.
+ * <p>
+ * Creating a deflater allocates its native zlib state, which is costly compared
+ * to compressing a small part. Deflaters are reset on release and reused by
+ * every entry and every workbook written afterwards.
+ * </p>
+ * <p>
+ * Deflaters are pooled by level. A level set with {@link Deflater#setLevel(int)}
+ * is only applied by the next call to <code>deflate</code>, and applying it to a
+ * deflater primed with a dictionary corrupts the output, so pooled deflaters
+ * never change their level on acquisition.
+ * </p>
+ */
+final class DeflaterPool {
+    private static final int MAX_POOLED = 64;
+    /** pools for the levels -1 (default) to 9 */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final ConcurrentLinkedQueue<Deflater>[] POOLS = new ConcurrentLinkedQueue[11];
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    static {
+        for (int i = 0; i < POOLS.length; i++) {
+            POOLS[i] = new ConcurrentLinkedQueue<Deflater>();
+        }
+    }
+
+    private DeflaterPool() {
+    }
+
+    static Deflater acquire(int level) {
+        Deflater deflater = POOLS[level + 1].poll();
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+        POOLED.decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * @param level the level the deflater compresses with now
+     */
+    static void release(Deflater deflater, int level) {
+        deflater.reset();
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOLS[level + 1].offer(deflater);
+        } else {
+            POOLED.decrementAndGet();
+            deflater.end();
+        }
+    }
+}
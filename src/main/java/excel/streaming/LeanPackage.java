@@ -0,0 +1,188 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the parts of a brand-new workbook directly from its sheets.
+ * <p>
+ * The parts are the same as the ones of a new <code>XSSFWorkbook</code> with
+ * the default styles, but they are generated as text, so that a workbook that
+ * never needs its XSSF model is written without loading XMLBeans.
+ * </p>
+ *
+ * @see StreamTemplate#compileLean(StreamWorkbook)
+ */
+final class LeanPackage {
+    static final String SHARED_STRINGS = "xl/sharedStrings.xml";
+
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String MAIN_NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String OFFICE_RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.";
+
+    private static final String STYLES = XML_DECLARATION
+            + "<styleSheet xmlns=\"" + MAIN_NS + "\"><numFmts count=\"0\"/>"
+            + "<fonts count=\"1\"><font><sz val=\"11.0\"/><color indexed=\"8\"/><name val=\"Calibri\"/>"
+            + "<family val=\"2\"/><scheme val=\"minor\"/></font></fonts>"
+            + "<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill>"
+            + "<fill><patternFill patternType=\"darkGray\"/></fill></fills>"
+            + "<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>"
+            + "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+            + "<cellXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/></cellXfs>"
+            + "</styleSheet>";
+    private static final String SHEET_TAIL = "</sheetData>"
+            + "<pageMargins bottom=\"0.75\" footer=\"0.3\" header=\"0.3\" left=\"0.7\" right=\"0.7\" top=\"0.75\"/>"
+            + "</worksheet>";
+
+    private LeanPackage() {
+    }
+
+    /**
+     * @return the parts of the package, with the worksheets split around their sheet data
+     */
+    static List<StreamTemplate.Part> createParts(StreamWorkbook workbook) {
+        int sheets = workbook.getNumberOfSheets();
+        List<StreamTemplate.Part> parts = new ArrayList<StreamTemplate.Part>(8 + sheets);
+        parts.add(part("[Content_Types].xml", contentTypes(sheets)));
+        parts.add(part("_rels/.rels", packageRelationships()));
+        parts.add(part("docProps/app.xml", XML_DECLARATION
+                + "<Properties xmlns=\"http://schemas.openxmlformats.org/officeDocument/2006/extended-properties\">"
+                + "<Application>Apache POI</Application></Properties>"));
+        parts.add(part("docProps/core.xml", coreProperties()));
+        parts.add(part("xl/workbook.xml", workbook(workbook)));
+        parts.add(part("xl/_rels/workbook.xml.rels", workbookRelationships(sheets)));
+        parts.add(part("xl/styles.xml", STYLES));
+        parts.add(part(SHARED_STRINGS, XML_DECLARATION
+                + "<sst count=\"0\" uniqueCount=\"0\" xmlns=\"" + MAIN_NS + "\"/>"));
+        for (int i = 0; i < sheets; i++) {
+            Utf8Buffer head = new Utf8Buffer(256);
+            head.writeAscii(XML_DECLARATION);
+            head.writeAscii("<worksheet xmlns=\"" + MAIN_NS + "\"><dimension ref=\"A1\"/>"
+                    + "<sheetViews><sheetView workbookViewId=\"0\"");
+            if (i == 0) head.writeAscii(" tabSelected=\"true\"");
+            head.writeAscii("/></sheetViews><sheetFormatPr defaultRowHeight=\"15.0\"/><sheetData>\n");
+            parts.add(new StreamTemplate.Part(sheetPart(i), i, head.toByteArray(), bytes(SHEET_TAIL)));
+        }
+        return parts;
+    }
+
+    private static String contentTypes(int sheets) {
+        StringBuilder xml = new StringBuilder(1024 + 160 * sheets);
+        xml.append(XML_DECLARATION);
+        xml.append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+        xml.append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+        xml.append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+        override(xml, "docProps/app.xml", CONTENT_TYPE + "extended-properties+xml");
+        override(xml, "docProps/core.xml", "application/vnd.openxmlformats-package.core-properties+xml");
+        override(xml, SHARED_STRINGS, CONTENT_TYPE + "spreadsheetml.sharedStrings+xml");
+        override(xml, "xl/styles.xml", CONTENT_TYPE + "spreadsheetml.styles+xml");
+        override(xml, "xl/workbook.xml", CONTENT_TYPE + "spreadsheetml.sheet.main+xml");
+        for (int i = 0; i < sheets; i++) {
+            override(xml, sheetPart(i), CONTENT_TYPE + "spreadsheetml.worksheet+xml");
+        }
+        xml.append("</Types>");
+        return xml.toString();
+    }
+
+    private static void override(StringBuilder xml, String partName, String contentType) {
+        xml.append("<Override PartName=\"/").append(partName).append("\" ContentType=\"").append(contentType).append("\"/>");
+    }
+
+    private static String packageRelationships() {
+        StringBuilder xml = new StringBuilder(512);
+        xml.append(XML_DECLARATION);
+        xml.append("<Relationships xmlns=\"" + RELATIONSHIPS_NS + "\">");
+        relationship(xml, 1, OFFICE_RELATIONSHIPS + "/officeDocument", "xl/workbook.xml");
+        relationship(xml, 2, OFFICE_RELATIONSHIPS + "/extended-properties", "docProps/app.xml");
+        relationship(xml, 3, RELATIONSHIPS_NS + "/metadata/core-properties", "docProps/core.xml");
+        xml.append("</Relationships>");
+        return xml.toString();
+    }
+
+    private static String coreProperties() {
+        return XML_DECLARATION
+                + "<coreProperties xmlns=\"http://schemas.openxmlformats.org/package/2006/metadata/core-properties\""
+                + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:dcterms=\"http://purl.org/dc/terms/\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+                + "<dcterms:created xsi:type=\"dcterms:W3CDTF\">" + Instant.now().truncatedTo(ChronoUnit.SECONDS)
+                + "</dcterms:created><dc:creator>Apache POI</dc:creator></coreProperties>";
+    }
+
+    /**
+     * The sheets refer to the relationships after the ones of the shared strings and the styles.
+     */
+    private static byte[] workbook(StreamWorkbook workbook) {
+        Utf8Buffer xml = new Utf8Buffer(512);
+        xml.writeAscii(XML_DECLARATION);
+        xml.writeAscii("<workbook xmlns=\"" + MAIN_NS + "\" xmlns:r=\"" + OFFICE_RELATIONSHIPS + "\">"
+                + "<workbookPr date1904=\"false\"/><bookViews><workbookView activeTab=\"0\"/></bookViews><sheets>");
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            xml.writeAscii("<sheet name=\"");
+            SheetDataWriter.writeQuoted(xml, workbook.getSheetName(i));
+            xml.writeAscii("\" r:id=\"rId");
+            xml.writeInt(i + 3);
+            xml.writeAscii("\" sheetId=\"");
+            xml.writeInt(i + 1);
+            xml.writeAscii("\"/>");
+        }
+        xml.writeAscii("</sheets></workbook>");
+        return xml.toByteArray();
+    }
+
+    private static String workbookRelationships(int sheets) {
+        StringBuilder xml = new StringBuilder(512 + 160 * sheets);
+        xml.append(XML_DECLARATION);
+        xml.append("<Relationships xmlns=\"" + RELATIONSHIPS_NS + "\">");
+        relationship(xml, 1, OFFICE_RELATIONSHIPS + "/sharedStrings", "sharedStrings.xml");
+        relationship(xml, 2, OFFICE_RELATIONSHIPS + "/styles", "styles.xml");
+        for (int i = 0; i < sheets; i++) {
+            relationship(xml, i + 3, OFFICE_RELATIONSHIPS + "/worksheet", "worksheets/sheet" + (i + 1) + ".xml");
+        }
+        xml.append("</Relationships>");
+        return xml.toString();
+    }
+
+    private static void relationship(StringBuilder xml, int id, String type, String target) {
+        xml.append("<Relationship Id=\"rId").append(id).append("\" Type=\"").append(type)
+                .append("\" Target=\"").append(target).append("\"/>");
+    }
+
+    private static String sheetPart(int index) {
+        return "xl/worksheets/sheet" + (index + 1) + ".xml";
+    }
+
+    private static StreamTemplate.Part part(String name, String xml) {
+        return part(name, bytes(xml));
+    }
+
+    private static StreamTemplate.Part part(String name, byte[] data) {
+        return new StreamTemplate.Part(name, -1, data, null);
+    }
+
+    private static byte[] bytes(String ascii) {
+        Utf8Buffer buf = new Utf8Buffer(ascii.length());
+        buf.writeAscii(ascii);
+        return buf.toByteArray();
+    }
+}
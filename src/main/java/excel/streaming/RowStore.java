@@ -0,0 +1,262 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * The rows of a sheet that are not flushed yet, ordered by row number.
+ * <p>
+ * Rows are nearly always created in ascending order and flushed from the lowest
+ * row number, so they are kept in a ring buffer indexed by the offset of the row
+ * number from the first row. Creating, looking up and flushing a row is then
+ * constant time and neither boxes the row number nor allocates a tree node.
+ * Row numbers that would make the buffer much larger than the number of rows it
+ * holds, e.g. a single row far below the others, switch the store to a
+ * <code>TreeMap</code> until it is emptied.
+ * </p>
+ */
+class RowStore implements Iterable<StreamRow> {
+    private static final int INITIAL_CAPACITY = 16;
+    /** the ring may have this many slots per row before the tree is used instead */
+    private static final int MAX_SLOTS_PER_ROW = 8;
+
+    /** capacity is a power of two */
+    private StreamRow[] _ring = new StreamRow[INITIAL_CAPACITY];
+    /** index in the ring of the first row */
+    private int _head;
+    /** row number of the first row */
+    private int _first;
+    /** number of row numbers from the first to the last row, both inclusive */
+    private int _span;
+    private int _size;
+    /** the rows while the store is in fallback mode, <code>null</code> otherwise */
+    private TreeMap<Integer, StreamRow> _tree;
+
+    int size() {
+        return _tree != null ? _tree.size() : _size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the lowest row number, undefined if the store is empty
+     */
+    int firstRowNum() {
+        return _tree != null ? _tree.firstKey() : _first;
+    }
+
+    /**
+     * @return the highest row number, undefined if the store is empty
+     */
+    int lastRowNum() {
+        return _tree != null ? _tree.lastKey() : _first + _span - 1;
+    }
+
+    StreamRow get(int rownum) {
+        if (_tree != null) {
+            return _tree.get(rownum);
+        }
+        long off = (long) rownum - _first;
+        if (off < 0 || off >= _span) return null;
+        return _ring[(_head + (int) off) & (_ring.length - 1)];
+    }
+
+    /**
+     * Adds the row, replacing the row with the same number if there is one.
+     */
+    void put(int rownum, StreamRow row) {
+        if (_tree != null) {
+            _tree.put(rownum, row);
+            return;
+        }
+        if (_size == 0) {
+            _head = 0;
+            _first = rownum;
+            _span = 1;
+            _ring[0] = row;
+            _size = 1;
+            return;
+        }
+        long off = (long) rownum - _first;
+        if (off >= 0 && off < _span) {
+            int i = (_head + (int) off) & (_ring.length - 1);
+            if (_ring[i] == null) _size++;
+            _ring[i] = row;
+            return;
+        }
+        long span = off < 0 ? _span - off : off + 1;
+        if (span > _ring.length) {
+            if (span > Math.max(INITIAL_CAPACITY, (long) MAX_SLOTS_PER_ROW * (_size + 1))) {
+                toTree();
+                _tree.put(rownum, row);
+                return;
+            }
+            grow((int) span);
+        }
+        if (off < 0) {
+            _head = (_head + (int) off) & (_ring.length - 1);
+            _first = rownum;
+            _ring[_head] = row;
+        } else {
+            _ring[(_head + (int) off) & (_ring.length - 1)] = row;
+        }
+        _span = (int) span;
+        _size++;
+    }
+
+    /**
+     * Removes the row with the given number.
+     *
+     * @return the removed row, <code>null</code> if there was none
+     */
+    StreamRow remove(int rownum) {
+        if (_tree != null) {
+            StreamRow row = _tree.remove(rownum);
+            if (_tree.isEmpty()) _tree = null;
+            return row;
+        }
+        long off = (long) rownum - _first;
+        if (off < 0 || off >= _span) return null;
+        int mask = _ring.length - 1;
+        int i = (_head + (int) off) & mask;
+        StreamRow row = _ring[i];
+        if (row == null) return null;
+        _ring[i] = null;
+        if (--_size == 0) {
+            _span = 0;
+        } else if (off == 0) {
+            // keep a row at both ends of the span
+            do {
+                _head = (_head + 1) & mask;
+                _first++;
+                _span--;
+            } while (_ring[_head] == null);
+        } else if (off == _span - 1) {
+            do {
+                _span--;
+            } while (_ring[(_head + _span - 1) & mask] == null);
+        }
+        return row;
+    }
+
+    /**
+     * Removes the row with the lowest row number.
+     *
+     * @return the removed row
+     * @throws NoSuchElementException if the store is empty
+     */
+    StreamRow removeFirst() {
+        if (isEmpty()) throw new NoSuchElementException();
+        return remove(firstRowNum());
+    }
+
+    /**
+     * @return the rows in ascending order of row numbers
+     */
+    public Iterator<StreamRow> iterator() {
+        return iterator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the rows from <code>fromRow</code> to <code>toRow</code>, both inclusive,
+     *         in ascending order of row numbers; the iterator removes rows through
+     *         {@link #remove(int)}
+     */
+    Iterator<StreamRow> iterator(final int fromRow, final int toRow) {
+        if (_tree != null) {
+            if (fromRow > toRow) return Collections.<StreamRow>emptyIterator();
+            final Iterator<StreamRow> rows = _tree.subMap(fromRow, true, toRow, true).values().iterator();
+            return new Iterator<StreamRow>() {
+                public boolean hasNext() {
+                    return rows.hasNext();
+                }
+
+                public StreamRow next() {
+                    return rows.next();
+                }
+
+                public void remove() {
+                    rows.remove();
+                    if (_tree.isEmpty()) _tree = null;
+                }
+            };
+        }
+        return new Iterator<StreamRow>() {
+            // row numbers rather than ring offsets, removing the first row moves the head
+            private long _next = advance(Math.max((long) fromRow, _first));
+            private long _last = -1;
+
+            private long advance(long rownum) {
+                long to = Math.min((long) toRow, (long) _first + _span - 1);
+                while (rownum <= to && get((int) rownum) == null) rownum++;
+                return rownum <= to ? rownum : Long.MAX_VALUE;
+            }
+
+            public boolean hasNext() {
+                return _next != Long.MAX_VALUE;
+            }
+
+            public StreamRow next() {
+                if (_next == Long.MAX_VALUE) throw new NoSuchElementException();
+                StreamRow row = get((int) _next);
+                _last = _next;
+                _next = advance(_next + 1);
+                return row;
+            }
+
+            public void remove() {
+                if (_last < 0) throw new IllegalStateException();
+                RowStore.this.remove((int) _last);
+                _last = -1;
+            }
+        };
+    }
+
+    private void grow(int span) {
+        int capacity = _ring.length;
+        while (capacity < span) capacity <<= 1;
+        StreamRow[] ring = new StreamRow[capacity];
+        // unwrap the rows to the start of the new ring
+        int mask = _ring.length - 1;
+        for (int off = 0; off < _span; off++) {
+            ring[off] = _ring[(_head + off) & mask];
+        }
+        _ring = ring;
+        _head = 0;
+    }
+
+    private void toTree() {
+        _tree = new TreeMap<Integer, StreamRow>();
+        int mask = _ring.length - 1;
+        for (int off = 0; off < _span; off++) {
+            int i = (_head + off) & mask;
+            if (_ring[i] != null) {
+                _tree.put(_first + off, _ring[i]);
+                _ring[i] = null;
+            }
+        }
+        _size = 0;
+        _span = 0;
+    }
+}
@@ -0,0 +1,247 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.WorkbookEvaluator;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.udf.UDFFinder;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+
+import java.util.HashMap;
+
+/**
+ * Computes the cached values of the formulas of a row before it is flushed.
+ * <p>
+ * Only the rows still kept in memory by the sheet can be seen: a reference to a
+ * row that was already flushed or not created yet, or to another sheet, makes
+ * the formula fail and the cell keeps the cached value it had. Functions POI
+ * does not implement fail the same way.
+ * </p>
+ *
+ * @see StreamSheet#setFormulaEvaluation(boolean)
+ */
+final class RowWindowEvaluator implements EvaluationWorkbook {
+    /** bound of the parsed formulas kept, the cache is dropped once it is full */
+    private static final int MAX_PARSED_FORMULAS = 256;
+    /** thrown for cells that cannot be seen, without a stack trace */
+    private static final RuntimeException OUTSIDE_WINDOW = new RuntimeException("Cell outside the row window", null, false, false) {
+    };
+
+    private final StreamSheet _sheet;
+    private final XSSFEvaluationWorkbook _workbook;
+    private final WorkbookEvaluator _evaluator;
+    private final EvaluationSheet _window = new EvaluationSheet() {
+        public EvaluationCell getCell(int rowIndex, int columnIndex) {
+            return getWindowCell(rowIndex, columnIndex);
+        }
+    };
+    private final EvaluationSheet _otherSheet = new EvaluationSheet() {
+        public EvaluationCell getCell(int rowIndex, int columnIndex) {
+            throw OUTSIDE_WINDOW;
+        }
+    };
+    private final HashMap<String, Ptg[]> _parsedFormulas = new HashMap<String, Ptg[]>();
+    private int _sheetIndex;
+
+    RowWindowEvaluator(StreamSheet sheet) {
+        _sheet = sheet;
+        _workbook = XSSFEvaluationWorkbook.create(sheet._workbook.getXSSFWorkbook());
+        _evaluator = new WorkbookEvaluator(this, null, null);
+    }
+
+    /**
+     * Sets the computed value on every formula cell of the row that can be evaluated.
+     *
+     * @param row a row of the sheet that is still kept in memory
+     */
+    void evaluateRow(StreamRow row) {
+        StreamCell[] cells = row._cells;
+        if (cells == null) return; // compact row without formulas
+        boolean evaluated = false;
+        for (int i = 0; i < cells.length; i++) {
+            StreamCell cell = cells[i];
+            if (cell == null || cell.getCellType() != Cell.CELL_TYPE_FORMULA) continue;
+            if (!evaluated) {
+                _sheetIndex = _sheet._workbook.getSheetIndex(_sheet);
+                evaluated = true;
+            }
+            ValueEval result;
+            try {
+                result = _evaluator.evaluate(new WindowCell(cell, row._rowNum, i));
+            } catch (RuntimeException e) {
+                continue; // not row local or not supported
+            }
+            setCachedValue(cell, result);
+        }
+        if (evaluated) _evaluator.clearAllCachedResultValues();
+    }
+
+    private static void setCachedValue(StreamCell cell, ValueEval result) {
+        if (result instanceof NumberEval) {
+            cell.setCellValue(((NumberEval) result).getNumberValue());
+        } else if (result instanceof StringEval) {
+            cell.setCellValue(((StringEval) result).getStringValue());
+        } else if (result instanceof BoolEval) {
+            cell.setCellValue(((BoolEval) result).getBooleanValue());
+        } else if (result instanceof ErrorEval) {
+            cell.setCellErrorValue((byte) ((ErrorEval) result).getErrorCode());
+        } else {
+            cell.setCellValue(0); // a reference to a blank cell shows as 0
+        }
+    }
+
+    private EvaluationCell getWindowCell(int rowIndex, int columnIndex) {
+        RowStore rows = _sheet._rows;
+        if (rows.isEmpty() || rowIndex < rows.firstRowNum() || rowIndex > rows.lastRowNum()) {
+            throw OUTSIDE_WINDOW;
+        }
+        StreamRow row = rows.get(rowIndex);
+        if (row == null) return null;
+        Cell cell = row.getCell(columnIndex);
+        return cell == null ? null : new WindowCell(cell, rowIndex, columnIndex);
+    }
+
+    public String getSheetName(int sheetIndex) {
+        return _workbook.getSheetName(sheetIndex);
+    }
+
+    public int getSheetIndex(EvaluationSheet sheet) {
+        if (sheet == _window) return _sheetIndex;
+        throw OUTSIDE_WINDOW;
+    }
+
+    public int getSheetIndex(String sheetName) {
+        return _workbook.getSheetIndex(sheetName);
+    }
+
+    public EvaluationSheet getSheet(int sheetIndex) {
+        return sheetIndex == _sheetIndex ? _window : _otherSheet;
+    }
+
+    public ExternalSheet getExternalSheet(int externSheetIndex) {
+        return _workbook.getExternalSheet(externSheetIndex);
+    }
+
+    public int convertFromExternSheetIndex(int externSheetIndex) {
+        return _workbook.convertFromExternSheetIndex(externSheetIndex);
+    }
+
+    public ExternalName getExternalName(int externSheetIndex, int externNameIndex) {
+        return _workbook.getExternalName(externSheetIndex, externNameIndex);
+    }
+
+    public EvaluationName getName(NamePtg namePtg) {
+        return _workbook.getName(namePtg);
+    }
+
+    public EvaluationName getName(String name, int sheetIndex) {
+        return _workbook.getName(name, sheetIndex);
+    }
+
+    public String resolveNameXText(NameXPtg ptg) {
+        return _workbook.resolveNameXText(ptg);
+    }
+
+    public Ptg[] getFormulaTokens(EvaluationCell evalCell) {
+        WindowCell windowCell = (WindowCell) evalCell;
+        StreamCell cell = (StreamCell) windowCell._cell; // formula cells are never compact
+        SharedFormula shared = cell.getSharedFormula();
+        if (shared != null) return shared.getTokens(windowCell._rowIndex, windowCell._columnIndex);
+        String formula = cell.getCellFormula();
+        Ptg[] ptgs = _parsedFormulas.get(formula);
+        if (ptgs == null) {
+            ptgs = FormulaParser.parse(formula, _workbook, FormulaType.CELL, _sheetIndex);
+            if (_parsedFormulas.size() >= MAX_PARSED_FORMULAS) _parsedFormulas.clear();
+            _parsedFormulas.put(formula, ptgs);
+        }
+        return ptgs;
+    }
+
+    public UDFFinder getUDFFinder() {
+        return _workbook.getUDFFinder();
+    }
+
+    /**
+     * A cell of the rows in memory as seen by the evaluator.
+     */
+    private final class WindowCell implements EvaluationCell {
+        final Cell _cell;
+        final int _rowIndex;
+        final int _columnIndex;
+
+        WindowCell(Cell cell, int rowIndex, int columnIndex) {
+            _cell = cell;
+            _rowIndex = rowIndex;
+            _columnIndex = columnIndex;
+        }
+
+        public Object getIdentityKey() {
+            return _cell;
+        }
+
+        public EvaluationSheet getSheet() {
+            return _window;
+        }
+
+        public int getRowIndex() {
+            return _rowIndex;
+        }
+
+        public int getColumnIndex() {
+            return _columnIndex;
+        }
+
+        public int getCellType() {
+            return _cell.getCellType();
+        }
+
+        public double getNumericCellValue() {
+            return _cell.getNumericCellValue();
+        }
+
+        public String getStringCellValue() {
+            return _cell.getStringCellValue();
+        }
+
+        public boolean getBooleanCellValue() {
+            return _cell.getBooleanCellValue();
+        }
+
+        public int getErrorCellValue() {
+            return _cell.getErrorCellValue();
+        }
+
+        public int getCachedFormulaResultType() {
+            return _cell.getCachedFormulaResultType();
+        }
+    }
+}
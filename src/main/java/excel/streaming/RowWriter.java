@@ -0,0 +1,89 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.ss.usermodel.Row;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the rows of a sheet straight into the worksheet entry.
+ * <p>
+ * A row writer is opened with {@link StreamSheet#openRowWriter()} from a
+ * {@link SheetWriter} while the workbook is written. Creating a row completes
+ * the rows created before it, which are then encoded into the output, so only
+ * the current row is held in memory. Rows have to be created in ascending order.
+ * </p>
+ */
+public final class RowWriter implements Closeable
+{
+    private final StreamSheet _sheet;
+    private int _lastRowNum = -1;
+
+    RowWriter(StreamSheet sheet)
+    {
+        _sheet=sheet;
+    }
+
+    /**
+     * Writes the rows created so far and creates a new row.
+     *
+     * @param rownum row number, greater than the number of any row created before
+     * @return the new row
+     * @throws IOException if the completed rows can't be written
+     * @throws IllegalArgumentException if <code>rownum</code> is not greater than the last row number
+     */
+    public Row createRow(int rownum) throws IOException
+    {
+        if(rownum<=_lastRowNum)
+        {
+            throw new IllegalArgumentException("Row " + rownum + " has to be greater than the last row " + _lastRowNum);
+        }
+        flush();
+        _lastRowNum=rownum;
+        return _sheet.createRow(rownum);
+    }
+
+    /**
+     * @return the number of the last row created, -1 if none
+     */
+    public int getLastRowNum()
+    {
+        return _lastRowNum;
+    }
+
+    /**
+     * Writes the rows created so far.
+     *
+     * @throws IOException if the rows can't be written
+     */
+    public void flush() throws IOException
+    {
+        _sheet.flushRows(0);
+    }
+
+    /**
+     * Writes the rows created so far. The rows of the sheet are also written
+     * when its {@link SheetWriter} returns, closing the writer is optional.
+     */
+    public void close() throws IOException
+    {
+        flush();
+    }
+}
@@ -0,0 +1,127 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.model.ThemesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellFill;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTXf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Style table for the candidate styles of {@link StreamWorkbook#createCellStyle(java.util.function.Consumer)}.
+ * <p>
+ * Setters of <code>XSSFCellStyle</code> such as <code>setBorderBottom</code> or
+ * <code>setFillPattern</code> add borders and fills to the style table. This
+ * table reads the borders, fills and fonts of the workbook but keeps new borders
+ * and fills to itself, so that the workbook (or a template shared between
+ * threads) is only changed by {@link #addTo(CTXf, StylesTable)} when
+ * the candidate actually becomes a new style.
+ * </p>
+ */
+final class ScratchStyles extends StylesTable {
+    private final StylesTable _styles;
+    private final List<XSSFCellBorder> _borders = new ArrayList<XSSFCellBorder>();
+    private final List<XSSFCellFill> _fills = new ArrayList<XSSFCellFill>();
+
+    ScratchStyles(StylesTable styles) {
+        _styles = styles;
+    }
+
+    /**
+     * @return a candidate style initialized from the style at <code>base</code>
+     *  of the workbook, forgetting the borders and fills of the previous candidate
+     */
+    XSSFCellStyle createCandidate(short base) {
+        _borders.clear();
+        _fills.clear();
+        XSSFCellStyle candidate = new XSSFCellStyle(this);
+        candidate.getCoreXf().set(_styles.getCellXfAt(base));
+        return candidate;
+    }
+
+    /**
+     * Adds the borders and fills of the candidate that the workbook doesn't have
+     * yet and points the format at them.
+     *
+     * @param format the format of a new style of the workbook, copied from the candidate
+     */
+    void addTo(CTXf format, StylesTable styles) {
+        int borderCount = _styles.getBorders().size();
+        if (format.getBorderId() >= borderCount) {
+            format.setBorderId(styles.putBorder(_borders.get((int) format.getBorderId() - borderCount)));
+        }
+        int fillCount = _styles.getFills().size();
+        if (format.getFillId() >= fillCount) {
+            format.setFillId(styles.putFill(_fills.get((int) format.getFillId() - fillCount)));
+        }
+    }
+
+    @Override
+    public ThemesTable getTheme() {
+        return _styles.getTheme();
+    }
+
+    @Override
+    public XSSFFont getFontAt(int idx) {
+        return _styles.getFontAt(idx);
+    }
+
+    @Override
+    public XSSFCellBorder getBorderAt(int idx) {
+        int count = _styles.getBorders().size();
+        return idx < count ? _styles.getBorderAt(idx) : _borders.get(idx - count);
+    }
+
+    @Override
+    public int putBorder(XSSFCellBorder border) {
+        List<XSSFCellBorder> borders = _styles.getBorders();
+        int idx = borders.indexOf(border);
+        if (idx >= 0) return idx;
+        idx = _borders.indexOf(border);
+        if (idx < 0) {
+            idx = _borders.size();
+            _borders.add(border);
+        }
+        return borders.size() + idx;
+    }
+
+    @Override
+    public XSSFCellFill getFillAt(int idx) {
+        int count = _styles.getFills().size();
+        return idx < count ? _styles.getFillAt(idx) : _fills.get(idx - count);
+    }
+
+    @Override
+    public int putFill(XSSFCellFill fill) {
+        List<XSSFCellFill> fills = _styles.getFills();
+        int idx = fills.indexOf(fill);
+        if (idx >= 0) return idx;
+        idx = _fills.indexOf(fill);
+        if (idx < 0) {
+            idx = _fills.size();
+            _fills.add(fill);
+        }
+        return fills.size() + idx;
+    }
+}
@@ -0,0 +1,151 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+
+/**
+ * A formula shared by the cells of a range, such as <code>B2*C2</code> on every
+ * row of column D.
+ * <p>
+ * The formula is given for the first cell of the range; its relative references
+ * move with the cells it is applied to, as when the cell is copied in Excel.
+ * The first cell written with the formula carries its text and the range it is
+ * shared with, all further cells within that range only refer to it, which keeps
+ * the sheet small and saves Excel from parsing the formula once per cell.
+ * </p>
+ * <pre>
+ * SharedFormula amount = sheet.createSharedFormula("B2*C2", CellRangeAddress.valueOf("D2:D100001"));
+ * for (int i = 1; i &lt;= 100000; i++) {
+ *     Row row = sheet.createRow(i);
+ *     ...
+ *     amount.applyTo(row.createCell(3));
+ * }
+ * </pre>
+ *
+ * @see StreamSheet#createSharedFormula(String, CellRangeAddress)
+ */
+public final class SharedFormula
+{
+    private final StreamSheet _sheet;
+    private final String _formula;
+    private final CellRangeAddress _range;
+    /** the parsed formula of the first cell, see {@link #getTokens(int, int)} */
+    private Ptg[] _tokens;
+
+    SharedFormula(StreamSheet sheet, String formula, CellRangeAddress range)
+    {
+        _sheet=sheet;
+        _formula=formula;
+        _range=range;
+        parse(); // fail early on an invalid formula
+    }
+
+    /**
+     * @return the formula of the first cell of the range
+     */
+    public String getFormula()
+    {
+        return _formula;
+    }
+
+    /**
+     * @return the cells sharing the formula
+     */
+    public CellRangeAddress getRange()
+    {
+        return _range;
+    }
+
+    /**
+     * Sets the formula on a cell of the range. The cell keeps its cached value.
+     * Setting another formula or value type on the cell removes it from the
+     * shared formula again.
+     *
+     * @param cell a cell of the sheet the formula was created on
+     * @throws IllegalArgumentException if the cell is not within the range
+     */
+    public void applyTo(Cell cell)
+    {
+        if(cell.getSheet()!=_sheet||!_range.isInRange(cell.getRowIndex(),cell.getColumnIndex()))
+        {
+            throw new IllegalArgumentException("Cell " + cell.getRowIndex() + "," + cell.getColumnIndex()
+                    + " is not within the range " + _range.formatAsString() + " of the shared formula");
+        }
+        StreamCell target=cell instanceof CompactCell?((CompactCell)cell).promote():(StreamCell)cell;
+        target.setSharedFormula(this);
+    }
+
+    /**
+     * @return the formula with its relative references moved to the given cell
+     */
+    String getFormula(int row, int column)
+    {
+        if(row==_range.getFirstRow()&&column==_range.getFirstColumn()) return _formula;
+        return FormulaRenderer.toFormulaString(evaluationWorkbook(),getTokens(row,column));
+    }
+
+    /**
+     * @return the parsed formula with its relative references moved to the given cell,
+     *  the returned tokens must not be modified
+     */
+    Ptg[] getTokens(int row, int column)
+    {
+        if(_tokens==null) _tokens=parse();
+        int rowOffset=row-_range.getFirstRow();
+        int columnOffset=column-_range.getFirstColumn();
+        if(rowOffset==0&&columnOffset==0) return _tokens;
+        return new org.apache.poi.ss.formula.SharedFormula(SpreadsheetVersion.EXCEL2007)
+                .convertSharedFormulas(_tokens,rowOffset,columnOffset);
+    }
+
+    /**
+     * @return whether the cell is within the range of the formula written at the master cell
+     */
+    boolean isShared(int masterRow, int masterColumn, int row, int column)
+    {
+        return row>=masterRow&&row<=_range.getLastRow()
+            &&column>=masterColumn&&column<=_range.getLastColumn();
+    }
+
+    /**
+     * @return the range of the formula written at the master cell, from there to the end of the range
+     */
+    String getSharedRef(int masterRow, int masterColumn)
+    {
+        return new CellRangeAddress(masterRow,_range.getLastRow(),masterColumn,_range.getLastColumn()).formatAsString();
+    }
+
+    private Ptg[] parse()
+    {
+        return FormulaParser.parse(_formula,evaluationWorkbook(),FormulaType.CELL,
+                _sheet._workbook.getSheetIndex(_sheet));
+    }
+
+    private XSSFEvaluationWorkbook evaluationWorkbook()
+    {
+        return XSSFEvaluationWorkbook.create(_sheet._workbook.getXSSFWorkbook());
+    }
+}
@@ -0,0 +1,186 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The shared strings of a workbook while it is written.
+ * <p>
+ * Strings are looked up in an open addressing hash table of indexes, so adding
+ * a string that is present already does not allocate. The table is bounded by
+ * an estimate of the memory its strings take; once that is reached,
+ * {@link #add(String)} only returns strings that are present already.
+ * Methods are synchronized as sheets may be written concurrently.
+ * </p>
+ */
+final class SharedStrings {
+    /** estimated heap of a string besides its characters, plus its table slots */
+    private static final int ENTRY_OVERHEAD = 56;
+
+    private final long _memoryLimit;
+    private long _memory;
+    /** all strings by index, including the ones of the template; null for rich text */
+    private String[] _strings;
+    private int _size;
+    /** the strings before this index are part of the template */
+    private final int _firstNew;
+    /** index + 1 of the string in each slot, 0 for an empty slot */
+    private int[] _slots;
+    /** number of occupied slots */
+    private int _entries;
+    private long _count;
+
+    /**
+     * @param existing    the strings of the template, <code>null</code> entries
+     *                    for rich text
+     * @param count       the number of references to the strings of the template
+     * @param memoryLimit the estimated number of bytes the added strings may take
+     */
+    SharedStrings(String[] existing, long count, long memoryLimit) {
+        _memoryLimit = memoryLimit;
+        _strings = new String[Math.max(16, existing.length * 2)];
+        _slots = new int[Math.max(64, Integer.highestOneBit(existing.length) * 4)];
+        for (String s : existing) {
+            _strings[_size++] = s;
+            if (s != null && find(s) < 0) insert(s, _size - 1);
+        }
+        _firstNew = _size;
+        _count = count;
+    }
+
+    /**
+     * Adds a reference to the string.
+     *
+     * @return the index of the string, -1 if it is not present and the memory
+     *         limit is reached
+     */
+    synchronized int add(String s) {
+        int index = find(s);
+        if (index < 0) {
+            long memory = ENTRY_OVERHEAD + 2L * s.length();
+            if (_memory + memory > _memoryLimit) return -1;
+            _memory += memory;
+            if (_size == _strings.length) {
+                String[] strings = new String[_size * 2];
+                System.arraycopy(_strings, 0, strings, 0, _size);
+                _strings = strings;
+            }
+            index = _size++;
+            _strings[index] = s;
+            insert(s, index);
+        }
+        _count++;
+        return index;
+    }
+
+    /**
+     * @return the number of distinct strings
+     */
+    synchronized int size() {
+        return _size;
+    }
+
+    private int find(String s) {
+        int mask = _slots.length - 1;
+        for (int slot = mix(s.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            int entry = _slots[slot];
+            if (entry == 0) return -1;
+            if (s.equals(_strings[entry - 1])) return entry - 1;
+        }
+    }
+
+    /**
+     * Places the string, which has to be stored at <code>index</code> already.
+     */
+    private void insert(String s, int index) {
+        // keep the load factor at most one half
+        if ((_entries + 1) * 2 > _slots.length) {
+            rehash(); // places all stored strings, including this one
+            return;
+        }
+        place(s, index);
+    }
+
+    private void place(String s, int index) {
+        int mask = _slots.length - 1;
+        int slot = mix(s.hashCode()) & mask;
+        while (_slots[slot] != 0) slot = (slot + 1) & mask;
+        _slots[slot] = index + 1;
+        _entries++;
+    }
+
+    private void rehash() {
+        _slots = new int[_slots.length * 2];
+        _entries = 0;
+        for (int i = 0; i < _size; i++) {
+            String s = _strings[i];
+            if (s != null && find(s) < 0) place(s, i);
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Writes the shared strings part.
+     *
+     * @param existingXml the <code>si</code> elements of the template
+     */
+    synchronized void writeTo(OutputStream out, byte[] existingXml) throws IOException {
+        Utf8Buffer buf = new Utf8Buffer(16 * 1024);
+        buf.writeAscii("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        buf.writeAscii("<sst xmlns=\"http://schemas.openxmlformats.org/spreadsheetml/2006/main\" count=\"");
+        buf.writeLong(_count);
+        buf.writeAscii("\" uniqueCount=\"");
+        buf.writeInt(_size);
+        buf.writeAscii("\">");
+        buf.write(existingXml);
+        for (int i = _firstNew; i < _size; i++) {
+            String s = _strings[i];
+            buf.writeAscii("<si><t");
+            if (SheetDataWriter.hasLeadingTrailingSpaces(s)) {
+                buf.writeAscii(" xml:space=\"preserve\"");
+            }
+            buf.write('>');
+            SheetDataWriter.writeQuoted(buf, s);
+            buf.writeAscii("</t></si>");
+            if (buf.size() >= 16 * 1024) buf.writeTo(out);
+        }
+        buf.writeAscii("</sst>");
+        buf.writeTo(out);
+    }
+
+    /**
+     * @return the content between the start and the end tag of the
+     *         <code>sst</code> element of a shared strings part
+     */
+    static byte[] getItems(byte[] sst) {
+        String xml = new String(sst, StandardCharsets.UTF_8);
+        int start = xml.indexOf("<sst");
+        if (start < 0) return new byte[0];
+        start = xml.indexOf('>', start);
+        if (xml.charAt(start - 1) == '/') return new byte[0];
+        int end = xml.lastIndexOf("</sst>");
+        return xml.substring(start + 1, end).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,42 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+/**
+ * How string cells are written.
+ *
+ * @see StreamWorkbook#setSharedStringsMode(SharedStringsMode)
+ */
+public enum SharedStringsMode
+{
+    /** Every string is written into its cell, the default */
+    INLINE,
+    /**
+     * Strings are written once into the shared strings part and cells refer to
+     * them by index. Once the shared strings reach their memory limit, strings
+     * not seen before are written inline.
+     */
+    SHARED,
+    /**
+     * Like {@link #SHARED}, but only for the columns of a sheet that repeat their
+     * strings. The strings of the first rows of every column are sampled and
+     * written inline; a column is then shared if at most half of its sampled
+     * strings are distinct.
+     */
+    ADAPTIVE
+}
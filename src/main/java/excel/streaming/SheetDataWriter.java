@@ -19,13 +19,19 @@
 
 package excel.streaming;
 
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.FormulaError;
 import org.apache.poi.ss.util.CellReference;
 
-import java.io.*;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Initially copied from BigGridDemo "SpreadsheetWriter".
@@ -34,8 +40,39 @@ import java.util.Iterator;
  * so that it was renamed to "SheetDataWriter"
  */
 public class SheetDataWriter {
+    /** column letters by column index, filled on first use by the sheets rendered concurrently */
+    private static final AtomicReferenceArray<byte[]> COLUMN_LETTERS =
+            new AtomicReferenceArray<byte[]>(SpreadsheetVersion.EXCEL2007.getMaxColumns());
+
+    /** ASCII characters that are escaped or replaced by {@link #outputQuotedString(String)} */
+    private static final boolean[] SPECIAL_ASCII_CHARS = new boolean[0x80];
+    static {
+        for (char c = 0; c < ' '; c++) SPECIAL_ASCII_CHARS[c] = true;
+        SPECIAL_ASCII_CHARS['<'] = true;
+        SPECIAL_ASCII_CHARS['>'] = true;
+        SPECIAL_ASCII_CHARS['&'] = true;
+        SPECIAL_ASCII_CHARS['"'] = true;
+    }
+
+    private final Utf8Buffer _out = new Utf8Buffer(8192);
     private int _rownum;
+    /** the 1-based row number of the current row as ASCII digits */
+    private final byte[] _rowDigits = new byte[10];
+    private int _rowDigitsLength;
+    private boolean _compactReferences;
+    private int _lastWrittenRownum = -1;
+    private int _lastWrittenColumn;
     private boolean _rowContainedNullCells = false;
+    /** the encoded start tags of the declared columns by column index, null if no schema is set */
+    private DeclaredColumn[] _declaredColumns;
+    /** the shared strings while the workbook is written, null to write strings inline */
+    private SharedStrings _sharedStrings;
+    /** the string sampling of each column if shared strings are chosen by column */
+    private StringColumn[] _stringColumns;
+    /** the shared index, first row and first column of each shared formula written to the part */
+    private final IdentityHashMap<SharedFormula, int[]> _sharedFormulas = new IdentityHashMap<SharedFormula, int[]>();
+    /** number of strings of a column sampled by {@link SharedStringsMode#ADAPTIVE} */
+    static final int STRING_SAMPLE_SIZE = 100;
     int _numberOfFlushedRows;
     int _lowestIndexOfFlushedRows; // meaningful only of _numberOfFlushedRows>0
     int _numberOfCellsOfLastFlushedRow; // meaningful only of _numberOfFlushedRows>0
@@ -56,110 +93,544 @@ public class SheetDataWriter {
     }
 
     /**
-     * Write a row to the file
+     * Whether the optional <code>r</code> attribute is omitted on rows and cells that
+     * directly follow the previously written row or cell.
+     */
+    public void setCompactReferences(boolean compactReferences) {
+        _compactReferences = compactReferences;
+    }
+
+    public boolean isCompactReferences() {
+        return _compactReferences;
+    }
+
+    /**
+     * Encodes the start tags of the columns declared by the schema.
+     *
+     * @param schema the schema, <code>null</code> to remove it
+     * @param styles the style index of each declared column, in schema order
+     */
+    void setColumnSchema(ColumnSchema schema, short[] styles) {
+        if (schema == null) {
+            _declaredColumns = null;
+            return;
+        }
+        int size = 0;
+        for (ColumnSchema.Column c : schema.getColumns()) size = Math.max(size, c.getColumnIndex() + 1);
+        DeclaredColumn[] declared = new DeclaredColumn[size];
+        int i = 0;
+        for (ColumnSchema.Column c : schema.getColumns()) {
+            declared[c.getColumnIndex()] = new DeclaredColumn(c.getColumnIndex(), c.getCellType(), styles[i++]);
+        }
+        _declaredColumns = declared;
+    }
+
+    /**
+     * Sets the shared strings that string cells refer to while the workbook is written.
+     *
+     * @param strings the shared strings, <code>null</code> to write strings inline
+     * @param mode    whether all string columns or only those that repeat their strings are shared
+     */
+    void setSharedStrings(SharedStrings strings, SharedStringsMode mode) {
+        _sharedStrings = mode == SharedStringsMode.INLINE ? null : strings;
+        _stringColumns = _sharedStrings != null && mode == SharedStringsMode.ADAPTIVE ? new StringColumn[16] : null;
+    }
+
+    /**
+     * Forgets the shared formulas written to the finished part, so that the next
+     * part written by this writer carries their first cells again.
+     */
+    void endSheetData() {
+        _sharedFormulas.clear();
+    }
+
+    /**
+     * @return whether the string is written to the shared strings, sampling the
+     *         column if they are chosen by column
+     */
+    private boolean isSharedString(int columnIndex, String value) {
+        StringColumn[] columns = _stringColumns;
+        if (columns == null) return true;
+        if (columnIndex >= columns.length) {
+            columns = _stringColumns = Arrays.copyOf(columns, Math.max(columnIndex + 1, columns.length * 2));
+        }
+        StringColumn column = columns[columnIndex];
+        if (column == null) column = columns[columnIndex] = new StringColumn();
+        return column.isShared(value);
+    }
+
+    /**
+     * @return the number of UTF-8 encoded bytes written since the last drain
+     */
+    public int getBufferedSize() {
+        return _out.size();
+    }
+
+    /**
+     * Writes the buffered XML to the stream and empties the buffer.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        _out.writeTo(out);
+    }
+
+    /**
+     * Returns the buffered XML as a string and empties the buffer.
+     */
+    public String drainToString() {
+        String xml = _out.toString();
+        _out.reset();
+        return xml;
+    }
+
+    /**
+     * Write a row to the buffer
      *
      * @param rownum 0-based row number
      * @param row    a row
      */
-    public void writeRow(int rownum, StreamRow row, Writer out) throws IOException {
+    public void writeRow(int rownum, StreamRow row) {
         if (_numberOfFlushedRows == 0)
             _lowestIndexOfFlushedRows = rownum;
         _numberOfCellsOfLastFlushedRow = row.getLastCellNum();
         _numberOfFlushedRows++;
-        beginRow(rownum, row, out);
-        Iterator<Cell> cells = row.allCellsIterator();
-        int columnIndex = 0;
-        while (cells.hasNext()) {
-            writeCell(columnIndex++, cells.next(), out);
+        beginRow(rownum, row);
+        if (row.isCompact()) {
+            writeCompactCells(row);
+        } else {
+            StreamCell[] cells = row._cells;
+            for (int i = 0; i <= row._maxColumn; i++) {
+                writeCell(i, cells[i]);
+            }
         }
-        endRow(out);
+        endRow();
     }
 
-    void beginRow(int rownum, StreamRow row, Writer out) throws IOException {
-        out.write("<row r=\"" + (rownum + 1) + "\"");
-        if (row.hasCustomHeight())
-            out.write(" customHeight=\"true\"  ht=\"" + row.getHeightInPoints() + "\"");
+    /**
+     * Writes the rows <code>from</code> (inclusive) to <code>to</code> (exclusive)
+     * of the batch straight from its column arrays.
+     *
+     * @param firstRow the 0-based row number of the first row of the batch
+     */
+    void writeBatch(int firstRow, ColumnBatch batch, int from, int to) {
+        if (from >= to) return;
+        if (_numberOfFlushedRows == 0)
+            _lowestIndexOfFlushedRows = firstRow + from;
+        _numberOfFlushedRows += to - from;
+        int columnCount = batch._columnCount;
+        int[] columns = batch._columns;
+        byte[] kinds = batch._kinds;
+        Object[] values = batch._values;
+        short[] styles = batch._styles;
+        _numberOfCellsOfLastFlushedRow = columnCount == 0 ? 0 : columns[columnCount - 1] + 1;
+        for (int i = from; i < to; i++) {
+            openRow(firstRow + i);
+            _out.writeAscii(">\n");
+            for (int c = 0; c < columnCount; c++) {
+                switch (kinds[c]) {
+                    case ColumnBatch.DOUBLES:
+                        double d = ((double[]) values[c])[i];
+                        if (Double.isInfinite(d)) {
+                            // like StreamCell.setCellValue(double), Excel has no infinities
+                            writeErrorCell(columns[c], styles[c], FormulaError.DIV0.getCode());
+                        } else if (!Double.isNaN(d)) {
+                            writeNumericCell(columns[c], styles[c], d);
+                        }
+                        break;
+                    case ColumnBatch.LONGS:
+                        writeNumericCell(columns[c], styles[c], ((long[]) values[c])[i]);
+                        break;
+                    case ColumnBatch.STRINGS:
+                        String str = ((String[]) values[c])[i];
+                        if (str != null) writeStringCell(columns[c], styles[c], str);
+                        break;
+                    case ColumnBatch.BOOLEANS:
+                        writeBooleanCell(columns[c], styles[c], ((boolean[]) values[c])[i]);
+                        break;
+                }
+            }
+            endRow();
+        }
+    }
+
+    /**
+     * @return the number of the row written last, -1 if none
+     */
+    int getLastWrittenRowNum() {
+        return _lastWrittenRownum;
+    }
+
+    void beginRow(int rownum, StreamRow row) {
+        Utf8Buffer out = _out;
+        openRow(rownum);
+        if (row.hasCustomHeight()) {
+            out.writeAscii(" customHeight=\"true\"  ht=\"");
+            out.writeAscii(Float.toString(row.getHeightInPoints()));
+            out.write('"');
+        }
         if (row.getZeroHeight())
-            out.write(" hidden=\"true\"");
+            out.writeAscii(" hidden=\"true\"");
         if (row.isFormatted()) {
-            out.write(" s=\"" + row._style + "\"");
-            out.write(" customFormat=\"1\"");
+            out.writeAscii(" s=\"");
+            out.writeInt(row._style);
+            out.write('"');
+            out.writeAscii(" customFormat=\"1\"");
         }
         if (row.getOutlineLevel() != 0) {
-            out.write(" outlineLevel=\"" + row.getOutlineLevel() + "\"");
+            out.writeAscii(" outlineLevel=\"");
+            out.writeInt(row.getOutlineLevel());
+            out.write('"');
+        }
+        out.writeAscii(">\n");
+    }
+
+    /**
+     * Writes the start tag of a row up to its reference.
+     */
+    private void openRow(int rownum) {
+        Utf8Buffer out = _out;
+        setRowDigits(rownum + 1);
+        out.writeAscii("<row");
+        if (!_compactReferences || rownum != _lastWrittenRownum + 1) {
+            out.writeAscii(" r=\"");
+            out.write(_rowDigits, 0, _rowDigitsLength);
+            out.write('"');
         }
-        out.write(">\n");
         this._rownum = rownum;
+        _lastWrittenRownum = rownum;
+        _lastWrittenColumn = -1;
         _rowContainedNullCells = false;
     }
 
-    void endRow(Writer out) throws IOException {
-        out.write("</row>\n");
+    private void setRowDigits(int value) {
+        int length = 1;
+        for (int t = value; t >= 10; t /= 10) length++;
+        for (int i = length - 1; i >= 0; i--) {
+            _rowDigits[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        _rowDigitsLength = length;
+    }
+
+    static byte[] getColumnLetters(int columnIndex) {
+        byte[] letters = COLUMN_LETTERS.get(columnIndex);
+        if (letters == null) {
+            letters = CellReference.convertNumToColString(columnIndex).getBytes(StandardCharsets.US_ASCII);
+            COLUMN_LETTERS.set(columnIndex, letters);
+        }
+        return letters;
+    }
+
+    void endRow() {
+        _out.writeAscii("</row>\n");
+    }
+
+    public void writeCell(int columnIndex, Cell cell) {
+        if (cell == null) {
+            _rowContainedNullCells = true;
+            return;
+        }
+        writeCell(columnIndex, cell.getCellStyle().getIndex(), cell);
     }
 
-    public void writeCell(int columnIndex, Cell cell, Writer out) throws IOException {
+    void writeCell(int columnIndex, StreamCell cell) {
         if (cell == null) {
             _rowContainedNullCells = true;
             return;
         }
-        String ref = new CellReference(_rownum, columnIndex).formatAsString();
-        out.write("<c r=\"" + ref + "\"");
-        CellStyle cellStyle = cell.getCellStyle();
-        if (cellStyle.getIndex() != 0) out.write(" s=\"" + cellStyle.getIndex() + "\"");
+        SharedFormula shared = cell.getSharedFormula();
+        if (shared != null) {
+            writeSharedFormulaCell(columnIndex, cell.getStyleIndex(), cell, shared);
+            return;
+        }
+        // reads the index off the cell rather than looking up the default style
+        writeCell(columnIndex, cell.getStyleIndex(), cell);
+    }
+
+    private void writeCell(int columnIndex, int styleIndex, Cell cell) {
         int cellType = cell.getCellType();
         switch (cellType) {
-            case Cell.CELL_TYPE_BLANK: {
-                out.write(">");
+            case Cell.CELL_TYPE_BLANK:
+                writeBlankCell(columnIndex, styleIndex);
                 break;
-            }
-            case Cell.CELL_TYPE_FORMULA: {
-                out.write(">");
-                out.write("<f>");
-                outputQuotedString(cell.getCellFormula(), out);
-                out.write("</f>");
-                switch (cell.getCachedFormulaResultType()) {
-                    case Cell.CELL_TYPE_NUMERIC:
-                        double nval = cell.getNumericCellValue();
-                        if (!Double.isNaN(nval)) {
-                            out.write("<v>" + nval + "</v>");
-                        }
-                        break;
-                }
+            case Cell.CELL_TYPE_FORMULA:
+                writeFormulaCell(columnIndex, styleIndex, cell);
                 break;
-            }
-            case Cell.CELL_TYPE_STRING: {
-                out.write(" t=\"inlineStr\">");
-                out.write("<is><t");
-                if(hasLeadingTrailingSpaces(cell.getStringCellValue())) {
-                    out.write(" xml:space=\"preserve\"");
-                }
-                out.write(">");
-                outputQuotedString(cell.getStringCellValue(), out);
-                out.write("</t></is>");
+            case Cell.CELL_TYPE_STRING:
+                writeStringCell(columnIndex, styleIndex, cell.getStringCellValue());
                 break;
-            }
-            case Cell.CELL_TYPE_NUMERIC: {
-                out.write(" t=\"n\">");
-                out.write("<v>" + cell.getNumericCellValue() + "</v>");
+            case Cell.CELL_TYPE_NUMERIC:
+                writeNumericCell(columnIndex, styleIndex, cell.getNumericCellValue());
                 break;
-            }
-            case Cell.CELL_TYPE_BOOLEAN: {
-                out.write(" t=\"b\">");
-                out.write("<v>" + (cell.getBooleanCellValue() ? "1" : "0") + "</v>");
+            case Cell.CELL_TYPE_BOOLEAN:
+                writeBooleanCell(columnIndex, styleIndex, cell.getBooleanCellValue());
                 break;
-            }
-            case Cell.CELL_TYPE_ERROR: {
-                FormulaError error = FormulaError.forInt(cell.getErrorCellValue());
-
-                out.write(" t=\"e\">");
-                out.write("<v>" + error.getString() + "</v>");
+            case Cell.CELL_TYPE_ERROR:
+                writeErrorCell(columnIndex, styleIndex, cell.getErrorCellValue());
                 break;
-            }
             default: {
                 throw new RuntimeException("Huh?");
             }
         }
-        out.write("</c>");
+    }
+
+    /**
+     * Writes the cells of a row with compact storage straight from its arrays.
+     */
+    private void writeCompactCells(StreamRow row) {
+        byte[] types = row._types;
+        short[] styles = row._styles;
+        double[] numbers = row._numbers;
+        for (int i = 0; i <= row._maxColumn; i++) {
+            switch (types[i] - 1) {
+                case Cell.CELL_TYPE_BLANK:
+                    writeBlankCell(i, styles[i]);
+                    break;
+                case Cell.CELL_TYPE_STRING:
+                    writeStringCell(i, styles[i], row._strings == null ? null : row._strings[i]);
+                    break;
+                case Cell.CELL_TYPE_NUMERIC:
+                    writeNumericCell(i, styles[i], numbers[i]);
+                    break;
+                case Cell.CELL_TYPE_BOOLEAN:
+                    writeBooleanCell(i, styles[i], numbers[i] != 0);
+                    break;
+                case Cell.CELL_TYPE_ERROR:
+                    writeErrorCell(i, styles[i], (byte) numbers[i]);
+                    break;
+                default:
+                    if (types[i] == StreamRow.PROMOTED) {
+                        writeCell(i, row._cells[i]);
+                    } else {
+                        _rowContainedNullCells = true;
+                    }
+            }
+        }
+    }
+
+    /**
+     * @return the declared column if the cell can be written with its encoded start tag
+     */
+    private DeclaredColumn declaredColumn(int columnIndex, int cellType, int styleIndex) {
+        DeclaredColumn[] declared = _declaredColumns;
+        if (declared == null || columnIndex >= declared.length) return null;
+        DeclaredColumn column = declared[columnIndex];
+        if (column == null || column._type != cellType
+                || (styleIndex != 0 && styleIndex != column._style)) return null;
+        return column;
+    }
+
+    /**
+     * Writes the encoded start tag of a cell of a declared column, up to and
+     * including the start tag of its value.
+     */
+    private void beginDeclaredCell(int columnIndex, DeclaredColumn column) {
+        Utf8Buffer out = _out;
+        if (!_compactReferences || columnIndex != _lastWrittenColumn + 1) {
+            out.write(column._start);
+            out.write(_rowDigits, 0, _rowDigitsLength);
+            out.write(column._attributes);
+        } else {
+            out.write(column._compactStart);
+        }
+        _lastWrittenColumn = columnIndex;
+    }
+
+    /**
+     * Writes the start tag of a cell up to its type attribute.
+     */
+    private void beginCell(int columnIndex, int styleIndex) {
+        Utf8Buffer out = _out;
+        out.writeAscii("<c");
+        if (!_compactReferences || columnIndex != _lastWrittenColumn + 1) {
+            out.writeAscii(" r=\"");
+            out.write(getColumnLetters(columnIndex));
+            out.write(_rowDigits, 0, _rowDigitsLength);
+            out.write('"');
+        }
+        _lastWrittenColumn = columnIndex;
+        if (styleIndex != 0) {
+            out.writeAscii(" s=\"");
+            out.writeInt(styleIndex);
+            out.write('"');
+        }
+    }
+
+    void writeBlankCell(int columnIndex, int styleIndex) {
+        beginCell(columnIndex, styleIndex);
+        _out.writeAscii("></c>");
+    }
+
+    void writeNumericCell(int columnIndex, int styleIndex, double value) {
+        Utf8Buffer out = _out;
+        DeclaredColumn declared = declaredColumn(columnIndex, Cell.CELL_TYPE_NUMERIC, styleIndex);
+        if (declared != null) {
+            beginDeclaredCell(columnIndex, declared);
+        } else {
+            beginCell(columnIndex, styleIndex);
+            out.writeAscii(" t=\"n\"><v>");
+        }
+        out.writeDouble(value);
+        out.writeAscii("</v></c>");
+    }
+
+    void writeNumericCell(int columnIndex, int styleIndex, long value) {
+        Utf8Buffer out = _out;
+        DeclaredColumn declared = declaredColumn(columnIndex, Cell.CELL_TYPE_NUMERIC, styleIndex);
+        if (declared != null) {
+            beginDeclaredCell(columnIndex, declared);
+        } else {
+            beginCell(columnIndex, styleIndex);
+            out.writeAscii(" t=\"n\"><v>");
+        }
+        out.writeLong(value);
+        out.writeAscii("</v></c>");
+    }
+
+    void writeStringCell(int columnIndex, int styleIndex, String value) {
+        Utf8Buffer out = _out;
+        DeclaredColumn declared = declaredColumn(columnIndex, Cell.CELL_TYPE_STRING, styleIndex);
+        if (_sharedStrings != null && value != null && isSharedString(columnIndex, value)) {
+            int index = _sharedStrings.add(value);
+            if (index >= 0) {
+                beginCell(columnIndex, declared != null ? declared._style : styleIndex);
+                out.writeAscii(" t=\"s\"><v>");
+                out.writeInt(index);
+                out.writeAscii("</v></c>");
+                return;
+            }
+        }
+        if (declared != null) {
+            beginDeclaredCell(columnIndex, declared);
+        } else {
+            beginCell(columnIndex, styleIndex);
+            out.writeAscii(" t=\"inlineStr\"><is><t");
+        }
+        if (hasLeadingTrailingSpaces(value)) {
+            out.writeAscii(" xml:space=\"preserve\"");
+        }
+        out.write('>');
+        outputQuotedString(value);
+        out.writeAscii("</t></is></c>");
+    }
+
+    void writeBooleanCell(int columnIndex, int styleIndex, boolean value) {
+        Utf8Buffer out = _out;
+        DeclaredColumn declared = declaredColumn(columnIndex, Cell.CELL_TYPE_BOOLEAN, styleIndex);
+        if (declared != null) {
+            beginDeclaredCell(columnIndex, declared);
+        } else {
+            beginCell(columnIndex, styleIndex);
+            out.writeAscii(" t=\"b\"><v>");
+        }
+        out.write(value ? '1' : '0');
+        out.writeAscii("</v></c>");
+    }
+
+    void writeErrorCell(int columnIndex, int styleIndex, byte code) {
+        beginCell(columnIndex, styleIndex);
+        Utf8Buffer out = _out;
+        out.writeAscii(" t=\"e\"><v>");
+        out.writeAscii(FormulaError.forInt(code).getString());
+        out.writeAscii("</v></c>");
+    }
+
+    private void writeFormulaCell(int columnIndex, int styleIndex, Cell cell) {
+        beginCell(columnIndex, styleIndex);
+        writeFormulaResultType(cell);
+        Utf8Buffer out = _out;
+        out.writeAscii("><f>");
+        outputQuotedString(cell.getCellFormula());
+        out.writeAscii("</f>");
+        endFormulaCell(cell);
+    }
+
+    /**
+     * Writes a cell of a shared formula. The first cell written carries the formula
+     * and the range it is shared with, the cells within that range refer to it.
+     */
+    private void writeSharedFormulaCell(int columnIndex, int styleIndex, Cell cell, SharedFormula formula) {
+        beginCell(columnIndex, styleIndex);
+        writeFormulaResultType(cell);
+        Utf8Buffer out = _out;
+        int[] master = _sharedFormulas.get(formula);
+        if (master != null && formula.isShared(master[1], master[2], _rownum, columnIndex)) {
+            out.writeAscii("><f t=\"shared\" si=\"");
+            out.writeInt(master[0]);
+            out.writeAscii("\"/>");
+        } else if (master == null) {
+            master = new int[]{_sharedFormulas.size(), _rownum, columnIndex};
+            _sharedFormulas.put(formula, master);
+            out.writeAscii("><f t=\"shared\" ref=\"");
+            out.writeAscii(formula.getSharedRef(_rownum, columnIndex));
+            out.writeAscii("\" si=\"");
+            out.writeInt(master[0]);
+            out.writeAscii("\">");
+            outputQuotedString(formula.getFormula(_rownum, columnIndex));
+            out.writeAscii("</f>");
+        } else {
+            // outside the range of the written formula
+            out.writeAscii("><f>");
+            outputQuotedString(formula.getFormula(_rownum, columnIndex));
+            out.writeAscii("</f>");
+        }
+        endFormulaCell(cell);
+    }
+
+    /**
+     * Writes the type attribute for a formula cell whose cached value is not a number.
+     */
+    private void writeFormulaResultType(Cell cell) {
+        switch (cell.getCachedFormulaResultType()) {
+            case Cell.CELL_TYPE_STRING:
+                _out.writeAscii(" t=\"str\"");
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                _out.writeAscii(" t=\"b\"");
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                _out.writeAscii(" t=\"e\"");
+                break;
+        }
+    }
+
+    /**
+     * Writes the cached value of a formula cell and closes the cell.
+     */
+    private void endFormulaCell(Cell cell) {
+        Utf8Buffer out = _out;
+        switch (cell.getCachedFormulaResultType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                double nval = cell.getNumericCellValue();
+                if (!Double.isNaN(nval)) {
+                    out.writeAscii("<v>");
+                    out.writeDouble(nval);
+                    out.writeAscii("</v>");
+                }
+                break;
+            case Cell.CELL_TYPE_STRING:
+                String sval = cell.getStringCellValue();
+                out.writeAscii("<v>");
+                if (sval != null) outputQuotedString(sval);
+                out.writeAscii("</v>");
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                out.writeAscii(cell.getBooleanCellValue() ? "<v>1</v>" : "<v>0</v>");
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                out.writeAscii("<v>");
+                out.writeAscii(FormulaError.forInt(cell.getErrorCellValue()).getString());
+                out.writeAscii("</v>");
+                break;
+        }
+        out.writeAscii("</c>");
+    }
+
+    /**
+     * Appends an XML fragment that was produced elsewhere, e.g. returned by
+     * {@link StreamSheet#flushRows()}, encoded as UTF-8.
+     */
+    void writeXml(String xml) {
+        _out.writeUtf8(xml);
     }
 
 
@@ -167,7 +638,7 @@ public class SheetDataWriter {
      * @return  whether the string has leading / trailing spaces that
      *  need to be preserved with the xml:space=\"preserve\" attribute
      */
-    boolean hasLeadingTrailingSpaces(String str) {
+    static boolean hasLeadingTrailingSpaces(String str) {
         if (str != null && str.length() > 0) {
             char firstChar = str.charAt(0);
             char lastChar  = str.charAt(str.length() - 1);
@@ -176,96 +647,168 @@ public class SheetDataWriter {
         return false;
     }
 
+    /**
+     * @return the index of the first character of the string that is not plain
+     *  ASCII text, or -1 if the whole string can be copied to the output as is
+     */
+    static int indexOfSpecialChar(String s) {
+        boolean[] special = SPECIAL_ASCII_CHARS;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80 || special[c]) return i;
+        }
+        return -1;
+    }
+
     //Taken from jdk1.3/src/javax/swing/text/html/HTMLWriter.java
-    protected void outputQuotedString(String s, Writer _out) throws IOException {
+    protected void outputQuotedString(String s) {
+        writeQuoted(_out, s);
+    }
+
+    /**
+     * Writes the string as XML text, see {@link #outputQuotedString(String)}.
+     */
+    static void writeQuoted(Utf8Buffer _out, String s) {
         if (s == null || s.length() == 0) {
             return;
         }
 
-        char[] chars = s.toCharArray();
+        int first = indexOfSpecialChar(s);
+        if (first < 0) {
+            // nothing to escape, copy the string in one go
+            _out.writeAscii(s);
+            return;
+        }
         int last = 0;
         int length = s.length();
-        for (int counter = 0; counter < length; counter++) {
-            char c = chars[counter];
+        for (int counter = first; counter < length; counter++) {
+            char c = s.charAt(counter);
             switch (c) {
                 case '<':
                     if (counter > last) {
-                        _out.write(chars, last, counter - last);
+                        _out.writeUtf8(s, last, counter);
                     }
                     last = counter + 1;
-                    _out.write("&lt;");
+                    _out.writeAscii("&lt;");
                     break;
                 case '>':
                     if (counter > last) {
-                        _out.write(chars, last, counter - last);
+                        _out.writeUtf8(s, last, counter);
                     }
                     last = counter + 1;
-                    _out.write("&gt;");
+                    _out.writeAscii("&gt;");
                     break;
                 case '&':
                     if (counter > last) {
-                        _out.write(chars, last, counter - last);
+                        _out.writeUtf8(s, last, counter);
                     }
                     last = counter + 1;
-                    _out.write("&amp;");
+                    _out.writeAscii("&amp;");
                     break;
                 case '"':
                     if (counter > last) {
-                        _out.write(chars, last, counter - last);
+                        _out.writeUtf8(s, last, counter);
                     }
                     last = counter + 1;
-                    _out.write("&quot;");
+                    _out.writeAscii("&quot;");
                     break;
                 // Special characters
                 case '\n':
                 case '\r':
                     if (counter > last) {
-                        _out.write(chars, last, counter - last);
+                        _out.writeUtf8(s, last, counter);
                     }
-                    _out.write("&#xa;");
+                    _out.writeAscii("&#xa;");
                     last = counter + 1;
                     break;
                 case '\t':
                     if (counter > last) {
-                        _out.write(chars, last, counter - last);
-                    }
-                    _out.write("&#x9;");
-                    last = counter + 1;
-                    break;
-                case 0xa0:
-                    if (counter > last) {
-                        _out.write(chars, last, counter - last);
+                        _out.writeUtf8(s, last, counter);
                     }
-                    _out.write("&#xa0;");
+                    _out.writeAscii("&#x9;");
                     last = counter + 1;
                     break;
                 default:
+                    // A surrogate pair is a valid supplementary character and is
+                    // copied as a four byte UTF-8 sequence with the rest of the text.
+                    if (Character.isHighSurrogate(c) && counter + 1 < length
+                            && Character.isLowSurrogate(s.charAt(counter + 1))) {
+                        counter++;
+                    }
                     // YK: XmlBeans silently replaces all ISO control characters ( < 32) with question marks.
-                    // the same rule applies to unicode surrogates and "not a character" symbols.
-                    if( c < ' ' || Character.isLowSurrogate(c) || Character.isHighSurrogate(c) ||
+                    // the same rule applies to unpaired surrogates and "not a character" symbols,
+                    // none of them can be represented in XML 1.0.
+                    else if( c < ' ' || Character.isSurrogate(c) ||
                             ('\uFFFE' <= c && c <= '\uFFFF')) {
                         if (counter > last) {
-                            _out.write(chars, last, counter - last);
+                            _out.writeUtf8(s, last, counter);
                         }
                         _out.write('?');
                         last = counter + 1;
                     }
-                    else if (c > 127) {
-                        if (counter > last) {
-                            _out.write(chars, last, counter - last);
-                        }
-                        last = counter + 1;
-                        // If the character is outside of ascii, write the
-                        // numeric value.
-                        _out.write("&#");
-                        _out.write(String.valueOf((int) c));
-                        _out.write(";");
-                    }
+                    // any other character is written as UTF-8
                     break;
             }
         }
         if (last < length) {
-            _out.write(chars, last, length - last);
+            _out.writeUtf8(s, last, length);
+        }
+    }
+
+    /**
+     * A column of the schema with its start tag encoded in the three forms
+     * {@link #beginDeclaredCell(int, DeclaredColumn)} needs.
+     */
+    static final class DeclaredColumn {
+        final int _type;
+        final int _style;
+        /** <code>&lt;c r="</code> and the column letters, followed by the row digits */
+        final byte[] _start;
+        /** the rest of the tag after the row digits */
+        final byte[] _attributes;
+        /** the whole tag without reference */
+        final byte[] _compactStart;
+
+        DeclaredColumn(int columnIndex, int type, int style) {
+            _type = type;
+            _style = style;
+            String attributes = style != 0 ? " s=\"" + style + "\"" : "";
+            switch (type) {
+                case Cell.CELL_TYPE_NUMERIC:
+                    attributes += " t=\"n\"><v>";
+                    break;
+                case Cell.CELL_TYPE_STRING:
+                    attributes += " t=\"inlineStr\"><is><t";
+                    break;
+                case Cell.CELL_TYPE_BOOLEAN:
+                    attributes += " t=\"b\"><v>";
+                    break;
+                default:
+                    throw new IllegalArgumentException("Illegal column type " + type);
+            }
+            _start = ("<c r=\"" + CellReference.convertNumToColString(columnIndex)).getBytes(StandardCharsets.US_ASCII);
+            _attributes = ("\"" + attributes).getBytes(StandardCharsets.US_ASCII);
+            _compactStart = ("<c" + attributes).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Samples the strings of a column for {@link SharedStringsMode#ADAPTIVE}.
+     */
+    private static final class StringColumn {
+        private HashSet<String> _distinct = new HashSet<String>();
+        private int _sampled;
+        private boolean _shared;
+
+        boolean isShared(String value) {
+            if (_distinct == null) return _shared;
+            _distinct.add(value);
+            if (++_sampled == STRING_SAMPLE_SIZE) {
+                _shared = _distinct.size() * 2 <= _sampled;
+                _distinct = null;
+            }
+            return false;
         }
     }
 
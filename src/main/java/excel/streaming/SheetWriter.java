@@ -0,0 +1,54 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.io.IOException;
+
+/**
+ * Pushes the rows of a sheet while the workbook is written.
+ * <p>
+ * This is the push style alternative to
+ * {@link StreamWorkbook#setStreamSource(java.util.function.Function)}: rather than
+ * returning a stream of row XML, the writer opens a {@link RowWriter} on the sheet
+ * and creates its rows one after another from a loop, a cursor or a callback.
+ * Rows are encoded straight into the worksheet entry as they are completed.
+ * </p>
+ * <pre>
+ * wb.setSheetWriter(sheet -&gt; {
+ *     RowWriter rows = sheet.openRowWriter();
+ *     for (Record r : records) {
+ *         Row row = rows.createRow(r.getIndex());
+ *         row.createCell(0).setCellValue(r.getName());
+ *     }
+ * });
+ * </pre>
+ *
+ * @see StreamWorkbook#setSheetWriter(SheetWriter)
+ */
+@FunctionalInterface
+public interface SheetWriter
+{
+    /**
+     * Writes the rows of the sheet. Called once for every sheet of the workbook,
+     * in sheet order unless a sheet executor is set.
+     *
+     * @param sheet the sheet being written
+     * @throws IOException if the rows can't be written
+     */
+    void writeSheet(StreamSheet sheet) throws IOException;
+}
@@ -39,8 +39,10 @@ public class StreamCell implements Cell
 
     StreamRow _row;
     Value _value;
-    CellStyle _style;
+    short _styleIndex;       // index of the cell's style in the workbook, 0 for the default style
     Property _firstProperty;
+    /** value kept by {@link #recycle()} for reuse by the next {@link #setType(int)} */
+    Value _spare;
 
     public StreamCell(StreamRow row, int cellType)
     {
@@ -161,6 +163,27 @@ public class StreamCell implements Cell
         }
     }
 
+    /**
+     * Set an integral numeric value for the cell
+     * <p>
+     * Excel stores all numbers as <code>double</code>, so values beyond 2^53 lose
+     * precision just like they do in Excel. Integral values are written without
+     * a fraction.
+     * </p>
+     *
+     * @param value  the numeric value to set this cell to.  For formulas we'll set the
+     *        precalculated value, for numerics we'll set its value. For other types we
+     *        will change the cell to a numeric cell and set its value.
+     */
+    public void setCellValue(long value)
+    {
+        ensureTypeOrFormulaType(CELL_TYPE_NUMERIC);
+        if(_value.getType()==CELL_TYPE_FORMULA)
+            ((NumericFormulaValue)_value).setPreEvaluatedValue(value);
+        else
+            ((NumericValue)_value).setValue(value);
+    }
+
     /**
      * Converts the supplied date to its equivalent Excel numeric value and sets
      * that into the cell.
@@ -270,7 +293,71 @@ public class StreamCell implements Cell
     {
        if(_value.getType()!=CELL_TYPE_FORMULA)
            throw typeMismatch(CELL_TYPE_FORMULA,_value.getType(),false);
-        return ((FormulaValue)_value).getValue();
+        FormulaValue fv=(FormulaValue)_value;
+        if(fv._shared!=null)
+            return fv._shared.getFormula(getRowIndex(),getColumnIndex());
+        return fv.getValue();
+    }
+
+    /**
+     * Makes this cell a member of the shared formula. The value of the cell
+     * becomes the cached result of the formula, the cached result of a formula
+     * cell is kept.
+     *
+     * @see SharedFormula#applyTo(Cell)
+     */
+    void setSharedFormula(SharedFormula formula)
+    {
+        if(_value.getType()!=CELL_TYPE_FORMULA)
+            _value=toFormulaValue(_value);
+        FormulaValue fv=(FormulaValue)_value;
+        fv.setValue(null);
+        fv._shared=formula;
+    }
+
+    /**
+     * @return a formula value whose cached result is the given plain value
+     */
+    private static FormulaValue toFormulaValue(Value value)
+    {
+        switch(value.getType())
+        {
+            case CELL_TYPE_STRING:
+            {
+                StringFormulaValue fv=new StringFormulaValue();
+                fv.setPreEvaluatedValue(((StringValue)value).isRichText()
+                    ?((RichTextValue)value).getValue().getString()
+                    :((PlainStringValue)value).getValue());
+                return fv;
+            }
+            case CELL_TYPE_BOOLEAN:
+            {
+                BooleanFormulaValue fv=new BooleanFormulaValue();
+                fv.setPreEvaluatedValue(((BooleanValue)value).getValue());
+                return fv;
+            }
+            case CELL_TYPE_ERROR:
+            {
+                ErrorFormulaValue fv=new ErrorFormulaValue();
+                fv.setPreEvaluatedValue(((ErrorValue)value).getValue());
+                return fv;
+            }
+            default:
+            {
+                NumericFormulaValue fv=new NumericFormulaValue();
+                if(value.getType()==CELL_TYPE_NUMERIC)
+                    fv.setPreEvaluatedValue(((NumericValue)value).getValue());
+                return fv;
+            }
+        }
+    }
+
+    /**
+     * @return the shared formula of this cell, <code>null</code> if it has none
+     */
+    SharedFormula getSharedFormula()
+    {
+        return _value.getType()==CELL_TYPE_FORMULA?((FormulaValue)_value)._shared:null;
     }
 
     /**
@@ -415,7 +502,7 @@ public class StreamCell implements Cell
      */
     public void setCellErrorValue(byte value)
     {
-        ensureType(CELL_TYPE_ERROR);
+        ensureTypeOrFormulaType(CELL_TYPE_ERROR);
         if(_value.getType()==CELL_TYPE_FORMULA)
             ((ErrorFormulaValue)_value).setPreEvaluatedValue(value);
         else
@@ -498,7 +585,7 @@ public class StreamCell implements Cell
      */
     public void setCellStyle(CellStyle style)
     {
-        _style=style;
+        _styleIndex=style==null?0:style.getIndex();
     }
 
     /**
@@ -510,12 +597,15 @@ public class StreamCell implements Cell
      */
     public CellStyle getCellStyle()
     {
-        if(_style == null){
-            StreamWorkbook wb = (StreamWorkbook)getRow().getSheet().getWorkbook();
-            return wb.getCellStyleAt((short)0);
-        } else {
-            return _style;
-        }
+        return getSheet().getWorkbook().getCellStyleAt(_styleIndex);
+    }
+
+    /**
+     * @return the index of the cell's style, 0 for the default style
+     */
+    int getStyleIndex()
+    {
+        return _styleIndex;
     }
 
     /**
@@ -578,7 +668,7 @@ public class StreamCell implements Cell
         xssfobj.getCTHyperlink().setRef( ref.formatAsString()  );
 
         // Add to the lists
-        ((StreamSheet)getSheet())._sh.addHyperlink(xssfobj);
+        ((StreamSheet)getSheet()).getModifiableXSSFSheet().addHyperlink(xssfobj);
 
     }
 
@@ -749,12 +839,14 @@ public class StreamCell implements Cell
         {
             case CELL_TYPE_NUMERIC:
             {
-                _value=new NumericValue();
+                Value spare=takeSpare(CELL_TYPE_NUMERIC);
+                _value=spare!=null?spare:new NumericValue();
                 break;
             }
             case CELL_TYPE_STRING:
             {
-                PlainStringValue sval = new PlainStringValue();
+                Value spare=takeSpare(CELL_TYPE_STRING);
+                PlainStringValue sval = spare!=null?(PlainStringValue)spare:new PlainStringValue();
                 if(_value != null){
                     // if a cell is not blank then convert the old value to string
                     String str = convertCellValueToString();
@@ -770,12 +862,13 @@ public class StreamCell implements Cell
             }
             case CELL_TYPE_BLANK:
             {
-                _value=new BlankValue();
+                _value=BlankValue.INSTANCE;
                 break;
             }
             case CELL_TYPE_BOOLEAN:
             {
-                BooleanValue bval = new BooleanValue();
+                Value spare=takeSpare(CELL_TYPE_BOOLEAN);
+                BooleanValue bval = spare!=null?(BooleanValue)spare:new BooleanValue();
                 if(_value != null){
                     // if a cell is not blank then convert the old value to string
                     boolean val = convertCellValueToBoolean();
@@ -786,7 +879,8 @@ public class StreamCell implements Cell
             }
             case CELL_TYPE_ERROR:
             {
-                _value=new ErrorValue();
+                Value spare=takeSpare(CELL_TYPE_ERROR);
+                _value=spare!=null?spare:new ErrorValue();
                 break;
             }
             default:
@@ -795,8 +889,48 @@ public class StreamCell implements Cell
             }
         }
     }
+    /**
+     * Returns the value kept from before the cell was recycled if it is a plain
+     * value of the given type, so that it can be overwritten instead of allocating
+     * a new one.
+     */
+    private Value takeSpare(int type)
+    {
+        Value spare=_spare;
+        if(spare==null||spare.getType()!=type
+           ||(type==CELL_TYPE_STRING&&((StringValue)spare).isRichText()))
+            return null;
+        _spare=null;
+        return spare;
+    }
+    /**
+     * Resets the cell after its row was flushed so that it can be reused by
+     * {@link StreamRow#createCell(int, int)}. The cell is blank afterwards and has
+     * no style, comment or hyperlink.
+     */
+    void recycle()
+    {
+        _styleIndex=0;
+        _firstProperty=null;
+        switch(_value.getType())
+        {
+            case CELL_TYPE_STRING:
+                if(((StringValue)_value).isRichText())
+                    break;
+                ((PlainStringValue)_value).setValue(null); // do not retain the text
+                _spare=_value;
+                break;
+            case CELL_TYPE_NUMERIC:
+            case CELL_TYPE_BOOLEAN:
+            case CELL_TYPE_ERROR:
+                _spare=_value;
+                break;
+        }
+        _value=BlankValue.INSTANCE;
+    }
     void setFormulaType(int type)
     {
+        FormulaValue old=_value.getType()==CELL_TYPE_FORMULA?(FormulaValue)_value:null;
         switch(type)
         {
             case CELL_TYPE_NUMERIC:
@@ -824,6 +958,13 @@ public class StreamCell implements Cell
                 throw new IllegalArgumentException("Illegal type " + type);
             }
         }
+        if(old!=null)
+        {
+            // only the type of the cached value changes, the formula stays
+            FormulaValue fv=(FormulaValue)_value;
+            fv._value=old._value;
+            fv._shared=old._shared;
+        }
     }
 //TODO: implement this correctly
     int computeTypeFromFormula(String formula)
@@ -834,7 +975,7 @@ public class StreamCell implements Cell
     /**
      * Used to help format error messages
      */
-    private static RuntimeException typeMismatch(int expectedTypeCode, int actualTypeCode, boolean isFormulaCell) {
+    static RuntimeException typeMismatch(int expectedTypeCode, int actualTypeCode, boolean isFormulaCell) {
         String msg = "Cannot get a "
             + getCellTypeName(expectedTypeCode) + " value from a "
             + getCellTypeName(actualTypeCode) + " " + (isFormulaCell ? "formula " : "") + "cell";
@@ -1009,6 +1150,7 @@ public class StreamCell implements Cell
     static abstract class FormulaValue implements Value
     {
         String _value;
+        SharedFormula _shared; // the formula is taken from here if set
         public int getType()
         {
             return CELL_TYPE_FORMULA;
@@ -1016,6 +1158,7 @@ public class StreamCell implements Cell
         void setValue(String value)
         {
             _value=value;
+            _shared=null;
         }
         String getValue()
         {
@@ -1089,6 +1232,8 @@ public class StreamCell implements Cell
     }
     static class BlankValue implements Value
     {
+        /** blank values carry no state and are shared by all blank cells */
+        static final BlankValue INSTANCE=new BlankValue();
         public int getType()
         {
             return CELL_TYPE_BLANK;
@@ -23,6 +23,7 @@ import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -40,11 +41,38 @@ public class StreamRow implements Row
     short _height=-1;
     boolean _zHeight = false;
     int _outlineLevel = 0;   // Outlining level of the row, when outlining is on
+    int _rowNum=-1;          // kept by the sheet, also valid after the row was flushed
+    int _estimatedSize;      // counted against the row access window of the sheet, 0 if not yet
+
+    // compact cell storage, see StreamSheet#setCompactCellStorage(boolean), null otherwise
+    byte[] _types;           // cell type + 1, NO_CELL or PROMOTED if the cell is held in _cells
+    double[] _numbers;       // numeric values, booleans as 0/1 and error codes
+    String[] _strings;       // allocated with the first string cell
+    short[] _styles;
+    static final byte NO_CELL=0;
+    static final byte PROMOTED=-1;
+
+    // cells of the flushed row this row was recycled from, reused by createCell by column
+    StreamCell[] _spareCells;
 
     public StreamRow(StreamSheet sheet, int initialSize)
+    {
+        this(sheet,initialSize,false);
+    }
+
+    StreamRow(StreamSheet sheet, int initialSize, boolean compact)
     {
         _sheet=sheet;
-        _cells=new StreamCell[initialSize];
+        if(compact)
+        {
+            _types=new byte[initialSize];
+            _numbers=new double[initialSize];
+            _styles=new short[initialSize];
+        }
+        else
+        {
+            _cells=new StreamCell[initialSize];
+        }
     }
     public Iterator<Cell> allCellsIterator()
     {
@@ -58,6 +86,171 @@ public class StreamRow implements Row
     int getOutlineLevel(){
         return _outlineLevel;
     }
+
+    /**
+     * Rough estimate of the heap held by this row and its cells.
+     */
+    int estimateSize()
+    {
+        if(_types!=null) return estimateCompactSize();
+        int size=48+4*_cells.length;
+        for(int i=0;i<=_maxColumn;i++)
+        {
+            StreamCell cell=_cells[i];
+            if(cell==null) continue;
+            size+=48;
+            int type=cell.getCellType();
+            if(type==Cell.CELL_TYPE_STRING)
+                size+=40+2*cell.getStringCellValue().length();
+            else if(type==Cell.CELL_TYPE_FORMULA)
+                size+=40+2*cell.getCellFormula().length();
+        }
+        return size;
+    }
+    private int estimateCompactSize()
+    {
+        int size=48+11*_types.length;
+        if(_strings!=null) size+=4*_strings.length;
+        if(_cells!=null) size+=4*_cells.length;
+        for(int i=0;i<=_maxColumn;i++)
+        {
+            if(_types[i]==PROMOTED)
+                size+=136;
+            else if(_strings!=null&&_strings[i]!=null)
+                size+=40+2*_strings[i].length();
+        }
+        return size;
+    }
+
+    /**
+     * @return whether the cells of this row are kept in parallel arrays
+     */
+    boolean isCompact()
+    {
+        return _types!=null;
+    }
+
+    private boolean hasCell(int column)
+    {
+        return _types!=null?_types[column]!=NO_CELL:_cells[column]!=null;
+    }
+
+    private Cell cellAt(int column)
+    {
+        if(_types==null) return _cells[column];
+        byte type=_types[column];
+        if(type==NO_CELL) return null;
+        if(type==PROMOTED) return _cells[column];
+        return new CompactCell(this,column);
+    }
+
+    private Cell createCompactCell(int column, int type)
+    {
+        if(column>=_types.length) growCompact(Math.max(column+1,_types.length*2));
+        if(column>_maxColumn) _maxColumn=column;
+        _styles[column]=0;
+        setCompactString(column,null);
+        if(_cells!=null) _cells[column]=null;
+        if(type==Cell.CELL_TYPE_FORMULA)
+            return attach(column,new StreamCell(this,type));
+        if(type<Cell.CELL_TYPE_NUMERIC||type>Cell.CELL_TYPE_ERROR)
+            throw new IllegalArgumentException("Illegal type " + type);
+        _types[column]=(byte)(type+1);
+        _numbers[column]=0;
+        return new CompactCell(this,column);
+    }
+
+    void setCompactString(int column, String value)
+    {
+        if(_strings==null)
+        {
+            if(value==null) return;
+            _strings=new String[_types.length];
+        }
+        _strings[column]=value;
+    }
+
+    /**
+     * Moves a compact cell into a full {@link StreamCell}, for the features the
+     * parallel arrays don't hold.
+     */
+    StreamCell promote(int column)
+    {
+        byte type=_types[column];
+        if(type==PROMOTED) return _cells[column];
+        StreamCell cell=new StreamCell(this,Cell.CELL_TYPE_BLANK);
+        switch(type-1)
+        {
+            case Cell.CELL_TYPE_NUMERIC:
+                cell.setCellValue(_numbers[column]);
+                break;
+            case Cell.CELL_TYPE_STRING:
+                cell.setCellValue(_strings==null?null:_strings[column]);
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                cell.setCellValue(_numbers[column]!=0);
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                cell.setCellErrorValue((byte)_numbers[column]);
+                break;
+        }
+        cell._styleIndex=_styles[column];
+        return attach(column,cell);
+    }
+
+    private StreamCell attach(int column, StreamCell cell)
+    {
+        if(_cells==null) _cells=new StreamCell[_types.length];
+        _cells[column]=cell;
+        _types[column]=PROMOTED;
+        setCompactString(column,null);
+        return cell;
+    }
+
+    /**
+     * Resets the row after it was flushed so that the sheet can hand it out again
+     * from <code>createRow</code>. The arrays are kept; in full mode the cells move
+     * to {@link #_spareCells} and are reused by the columns they were created for.
+     */
+    void recycle()
+    {
+        _style=-1;
+        _height=-1;
+        _zHeight=false;
+        _outlineLevel=0;
+        _estimatedSize=0;
+        int end=_maxColumn+1;
+        if(_types!=null)
+        {
+            Arrays.fill(_types,0,end,NO_CELL);
+            if(_strings!=null) Arrays.fill(_strings,0,end,null);
+            if(_cells!=null) Arrays.fill(_cells,0,end,null);
+        }
+        else
+        {
+            if(_spareCells==null||_spareCells.length<end)
+                _spareCells=_spareCells==null?new StreamCell[_cells.length]:Arrays.copyOf(_spareCells,_cells.length);
+            for(int i=0;i<end;i++)
+            {
+                StreamCell cell=_cells[i];
+                if(cell==null) continue;
+                cell.recycle();
+                _spareCells[i]=cell;
+                _cells[i]=null;
+            }
+        }
+        _maxColumn=-1;
+    }
+
+    private void growCompact(int size)
+    {
+        _types=Arrays.copyOf(_types,size);
+        _numbers=Arrays.copyOf(_numbers,size);
+        _styles=Arrays.copyOf(_styles,size);
+        if(_strings!=null) _strings=Arrays.copyOf(_strings,size);
+        if(_cells!=null) _cells=Arrays.copyOf(_cells,size);
+    }
+
     void setOutlineLevel(int level){
         _outlineLevel = level;
     }
@@ -98,6 +291,7 @@ public class StreamRow implements Row
     public Cell createCell(int column, int type)
     {
         checkBounds(column);
+        if(_types!=null) return createCompactCell(column,type);
 
         if(column>=_cells.length)
         {
@@ -105,9 +299,19 @@ public class StreamRow implements Row
             System.arraycopy(_cells,0,newCells,0,_cells.length);
             _cells=newCells;
         }
-        _cells[column]=new StreamCell(this,type);
+        StreamCell cell=null;
+        if(_spareCells!=null&&column<_spareCells.length&&(cell=_spareCells[column])!=null)
+        {
+            _spareCells[column]=null;
+            cell.setType(type);
+        }
+        else
+        {
+            cell=new StreamCell(this,type);
+        }
+        _cells[column]=cell;
         if(column>_maxColumn) _maxColumn=column;
-        return _cells[column];
+        return cell;
     }
 
     /**
@@ -133,13 +337,24 @@ public class StreamRow implements Row
         int index=getCellIndex(cell);
         if(index>=0)
         {
-            _cells[index]=null;
-            while(_maxColumn>=0&&_cells[_maxColumn]==null) _maxColumn--;
+            if(_cells!=null) _cells[index]=null;
+            if(_types!=null)
+            {
+                _types[index]=NO_CELL;
+                setCompactString(index,null);
+            }
+            while(_maxColumn>=0&&!hasCell(_maxColumn)) _maxColumn--;
         }
     }
 
     int getCellIndex(Cell cell)
     {
+        if(cell instanceof CompactCell)
+        {
+            CompactCell compact=(CompactCell)cell;
+            return compact._row==this&&compact._column<=_maxColumn&&hasCell(compact._column)?compact._column:-1;
+        }
+        if(_cells==null) return -1;
         for(int i=0;i<=_maxColumn;i++)
         {
             if(_cells[i]==cell) return i;
@@ -165,7 +380,7 @@ public class StreamRow implements Row
      */
     public int getRowNum()
     {
-        return _sheet.getRowNum(this);
+        return _rowNum;
     }
 
     /**
@@ -179,7 +394,7 @@ public class StreamRow implements Row
     public Cell getCell(int cellnum) {
         if(cellnum < 0) throw new IllegalArgumentException("Cell index must be >= 0");
 
-        Cell cell = cellnum > _maxColumn ? null : _cells[cellnum];
+        Cell cell = cellnum > _maxColumn ? null : cellAt(cellnum);
 
         MissingCellPolicy policy = _sheet.getWorkbook().getMissingCellPolicy();
         if(policy == RETURN_NULL_AND_BLANK) {
@@ -246,7 +461,7 @@ public class StreamRow implements Row
     public short getFirstCellNum()
     {
         for(int i=0;i<=_maxColumn;i++)
-            if(_cells[i]!=null) return (short)i;
+            if(hasCell(i)) return (short)i;
         return -1;
     }
 
@@ -285,7 +500,7 @@ public class StreamRow implements Row
         int count=0;
         for(int i=0;i<=_maxColumn;i++)
         {
-            if(_cells[i]!=null) count++;
+            if(hasCell(i)) count++;
         }
         return count;
     }
@@ -416,7 +631,7 @@ public class StreamRow implements Row
 
         FilledCellIterator(){
             for (int i = 0; i <= _maxColumn; i++) {
-                if (_cells[i] != null) {
+                if (hasCell(i)) {
                     pos = i;
                     break;
                 }
@@ -430,13 +645,13 @@ public class StreamRow implements Row
         void advanceToNext()
         {
             pos++;
-            while(pos<=_maxColumn&&_cells[pos]==null) pos++;
+            while(pos<=_maxColumn&&!hasCell(pos)) pos++;
         }
         public Cell next() throws NoSuchElementException
         {
             if (hasNext())
             {
-                Cell retval=_cells[pos];
+                Cell retval=cellAt(pos);
                 advanceToNext();
                 return retval;
             }
@@ -461,7 +676,7 @@ public class StreamRow implements Row
         public Cell next() throws NoSuchElementException
         {
             if (hasNext())
-                return _cells[pos++];
+                return cellAt(pos++);
             else
                 throw new NoSuchElementException();
         }
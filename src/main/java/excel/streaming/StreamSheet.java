@@ -27,11 +27,11 @@ import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTSheetFormatPr;
 import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorksheet;
 
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Streaming version of XSSFSheet implementing the "BigGridDemo" strategy.
@@ -41,10 +41,38 @@ import java.util.TreeMap;
 public class StreamSheet implements Sheet, Cloneable
 {
     StreamWorkbook _workbook;
+    /** the XSSF model, <code>null</code> until the workbook creates its model */
     XSSFSheet _sh;
-    TreeMap<Integer, StreamRow> _rows=new TreeMap<Integer, StreamRow>();
+    /** the name of the sheet while it has no XSSF model */
+    String _sheetName;
+    RowStore _rows=new RowStore();
     SheetDataWriter _writer;
     int outlineLevelRow = 0;
+    /** the worksheet entry while the workbook is written with direct row output */
+    OutputStream _sink;
+    /** the row writer while the sheet is written by a {@link SheetWriter} */
+    RowWriter _rowWriter;
+    /** maximum number of rows kept in memory, -1 if unbounded */
+    int _rowAccessWindow = -1;
+    /** maximum estimated size of the rows kept in memory, -1 if unbounded */
+    long _rowAccessWindowBytes = -1;
+    /** estimated size of the rows in memory, maintained while a byte window is set */
+    long _windowBytes;
+    StreamRow _lastCreatedRow;
+    /** whether rows created from now on keep their cells in parallel arrays */
+    boolean _compactCellStorage;
+    /** flushed rows waiting to be reused, null unless row recycling is on */
+    ArrayDeque<StreamRow> _recycledRows;
+    ColumnSchema _columnSchema;
+    /** computes the cached values of formulas before their row is flushed, null if off */
+    RowWindowEvaluator _evaluator;
+
+    /** number of buffered bytes at which rows are handed to the sink */
+    static final int SINK_FLUSH_THRESHOLD = 32 * 1024;
+    /** maximum number of flushed rows kept for reuse */
+    static final int MAX_RECYCLED_ROWS = 64;
+    /** number of batch rows encoded between checks of the buffered size */
+    static final int BATCH_CHUNK_ROWS = 256;
 
     public StreamSheet(StreamWorkbook workbook, XSSFSheet xSheet) throws IOException
     {
@@ -53,6 +81,35 @@ public class StreamSheet implements Sheet, Cloneable
         _writer = workbook.createSheetDataWriter();
     }
 
+    /**
+     * Creates a sheet of a brand-new workbook that has no XSSF model yet.
+     */
+    StreamSheet(StreamWorkbook workbook, String sheetName) throws IOException
+    {
+        _workbook=workbook;
+        _sheetName=sheetName;
+        _writer = workbook.createSheetDataWriter();
+    }
+
+    /**
+     * @return the XSSF model of the sheet, created together with the model of the workbook
+     */
+    XSSFSheet getXSSFSheet()
+    {
+        if(_sh==null) _workbook.getXSSFWorkbook();
+        return _sh;
+    }
+
+    /**
+     * @return the XSSF model of the sheet for a change of its layout
+     * @throws IllegalStateException if the workbook was stamped from a template
+     */
+    XSSFSheet getModifiableXSSFSheet()
+    {
+        _workbook.checkLayoutNotStamped();
+        return getXSSFSheet();
+    }
+
     /**
      * for testing purposes only
      */
@@ -93,8 +150,21 @@ public class StreamSheet implements Sheet, Cloneable
 //default to 10 on the first row.
         if(initialAllocationSize<=0)
             initialAllocationSize=10;
-        StreamRow newRow=new StreamRow(this,initialAllocationSize);
-        _rows.put(new Integer(rownum),newRow);
+        StreamRow newRow=_recycledRows!=null?_recycledRows.pollFirst():null;
+        if(newRow==null||newRow.isCompact()!=_compactCellStorage)
+            newRow=new StreamRow(this,initialAllocationSize,_compactCellStorage);
+        newRow._rowNum=rownum;
+        if(_rowAccessWindowBytes>=0&&_lastCreatedRow!=null&&_lastCreatedRow._estimatedSize==0)
+        {
+            // the previous row is considered complete once the next one is started
+            _lastCreatedRow._estimatedSize=_lastCreatedRow.estimateSize();
+            _windowBytes+=_lastCreatedRow._estimatedSize;
+        }
+        _lastCreatedRow=newRow;
+        StreamRow replaced=_rows.get(rownum);
+        if(replaced!=null) _windowBytes-=replaced._estimatedSize;
+        _rows.put(rownum,newRow);
+        applyRowAccessWindow();
         return newRow;
     }
 
@@ -109,14 +179,11 @@ public class StreamSheet implements Sheet, Cloneable
             throw new IllegalArgumentException("Specified row does not belong to this sheet");
         }
 
-        for(Iterator<Map.Entry<Integer, StreamRow>> iter = _rows.entrySet().iterator(); iter.hasNext();)
+        StreamRow sxRow=(StreamRow)row;
+        if(_rows.get(sxRow._rowNum)==sxRow)
         {
-            Map.Entry<Integer, StreamRow> entry=iter.next();
-            if(entry.getValue()==row)
-            {
-                iter.remove();
-                return;
-            }
+            _rows.remove(sxRow._rowNum);
+            _windowBytes-=sxRow._estimatedSize;
         }
     }
 
@@ -129,7 +196,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public Row getRow(int rownum)
     {
-        return _rows.get(new Integer(rownum));
+        return _rows.get(rownum);
     }
 
     /**
@@ -151,7 +218,7 @@ public class StreamSheet implements Sheet, Cloneable
     {
         if(_writer.getNumberOfFlushedRows() > 0)
             return _writer.getLowestIndexOfFlushedRows();
-        return _rows.size() == 0 ? 0 : _rows.firstKey();
+        return _rows.isEmpty() ? 0 : _rows.firstRowNum();
     }
 
     /**
@@ -161,7 +228,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public int getLastRowNum()
     {
-        return _rows.size() == 0 ? 0 : _rows.lastKey();
+        return _rows.isEmpty() ? 0 : _rows.lastRowNum();
     }
 
     /**
@@ -172,7 +239,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setColumnHidden(int columnIndex, boolean hidden)
     {
-        _sh.setColumnHidden(columnIndex,hidden);
+        getModifiableXSSFSheet().setColumnHidden(columnIndex,hidden);
     }
 
     /**
@@ -183,7 +250,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isColumnHidden(int columnIndex)
     {
-        return _sh.isColumnHidden(columnIndex);
+        return getXSSFSheet().isColumnHidden(columnIndex);
     }
 
     /**
@@ -199,7 +266,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setColumnWidth(int columnIndex, int width)
     {
-        _sh.setColumnWidth(columnIndex,width);
+        getModifiableXSSFSheet().setColumnWidth(columnIndex,width);
     }
 
     /**
@@ -209,7 +276,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public int getColumnWidth(int columnIndex)
     {
-        return _sh.getColumnWidth(columnIndex);
+        return getXSSFSheet().getColumnWidth(columnIndex);
     }
 
     /**
@@ -220,7 +287,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDefaultColumnWidth(int width)
     {
-        _sh.setDefaultColumnWidth(width);
+        getModifiableXSSFSheet().setDefaultColumnWidth(width);
     }
 
     /**
@@ -231,7 +298,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public int getDefaultColumnWidth()
     {
-        return _sh.getDefaultColumnWidth();
+        return getXSSFSheet().getDefaultColumnWidth();
     }
 
 
@@ -243,7 +310,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public short getDefaultRowHeight()
     {
-        return _sh.getDefaultRowHeight();
+        return getXSSFSheet().getDefaultRowHeight();
     }
 
     /**
@@ -254,7 +321,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public float getDefaultRowHeightInPoints()
     {
-        return _sh.getDefaultRowHeightInPoints();
+        return getXSSFSheet().getDefaultRowHeightInPoints();
     }
 
     /**
@@ -265,7 +332,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDefaultRowHeight(short height)
     {
-        _sh.setDefaultRowHeight(height);
+        getModifiableXSSFSheet().setDefaultRowHeight(height);
     }
 
     /**
@@ -275,7 +342,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDefaultRowHeightInPoints(float height)
     {
-        _sh.setDefaultRowHeightInPoints(height);
+        getModifiableXSSFSheet().setDefaultRowHeightInPoints(height);
     }
 
 
@@ -286,7 +353,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public CellStyle getColumnStyle(int column)
     {
-        return _sh.getColumnStyle(column);
+        return getXSSFSheet().getColumnStyle(column);
     }
 
     /**
@@ -303,7 +370,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public int addMergedRegion(CellRangeAddress region)
     {
-        return _sh.addMergedRegion(region);
+        return getModifiableXSSFSheet().addMergedRegion(region);
     }
 
     /**
@@ -313,7 +380,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setVerticallyCenter(boolean value)
     {
-        _sh.setVerticallyCenter(value);
+        getModifiableXSSFSheet().setVerticallyCenter(value);
     }
 
     /**
@@ -323,7 +390,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setHorizontallyCenter(boolean value)
     {
-        _sh.setHorizontallyCenter(value);
+        getModifiableXSSFSheet().setHorizontallyCenter(value);
     }
 
     /**
@@ -332,7 +399,7 @@ public class StreamSheet implements Sheet, Cloneable
 
     public boolean getHorizontallyCenter()
     {
-        return _sh.getHorizontallyCenter();
+        return getXSSFSheet().getHorizontallyCenter();
     }
 
     /**
@@ -340,7 +407,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getVerticallyCenter()
     {
-        return _sh.getVerticallyCenter();
+        return getXSSFSheet().getVerticallyCenter();
     }
 
     /**
@@ -350,7 +417,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void removeMergedRegion(int index)
     {
-        _sh.removeMergedRegion(index);
+        getModifiableXSSFSheet().removeMergedRegion(index);
     }
 
     /**
@@ -360,7 +427,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public int getNumMergedRegions()
     {
-        return _sh.getNumMergedRegions();
+        return getXSSFSheet().getNumMergedRegions();
     }
 
     /**
@@ -370,7 +437,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public CellRangeAddress getMergedRegion(int index)
     {
-        return _sh.getMergedRegion(index);
+        return getXSSFSheet().getMergedRegion(index);
     }
 
     /**
@@ -378,12 +445,34 @@ public class StreamSheet implements Sheet, Cloneable
      *
      * @return an iterator of the PHYSICAL rows.  Meaning the 3rd element may not
      * be the third row if say for instance the second row is undefined.
+     * Its <code>remove()</code> removes the row from the sheet.
      */
     public Iterator<Row> rowIterator()
     {
-        @SuppressWarnings("unchecked")
-        Iterator<Row> result = (Iterator<Row>)(Iterator<? extends Row>)_rows.values().iterator();
-        return result;
+        final Iterator<StreamRow> rows=_rows.iterator();
+        return new Iterator<Row>()
+        {
+            private StreamRow _last;
+
+            public boolean hasNext()
+            {
+                return rows.hasNext();
+            }
+
+            public Row next()
+            {
+                _last=rows.next();
+                return _last;
+            }
+
+            public void remove()
+            {
+                // like removeRow(Row), the row is no longer counted against the window
+                rows.remove();
+                _windowBytes-=_last._estimatedSize;
+                _last=null;
+            }
+        };
     }
 
     /**
@@ -393,7 +482,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setAutobreaks(boolean value)
     {
-        _sh.setAutobreaks(value);
+        getModifiableXSSFSheet().setAutobreaks(value);
     }
 
     /**
@@ -403,7 +492,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDisplayGuts(boolean value)
     {
-        _sh.setDisplayGuts(value);
+        getModifiableXSSFSheet().setDisplayGuts(value);
     }
 
     /**
@@ -414,7 +503,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDisplayZeros(boolean value)
     {
-        _sh.setDisplayZeros(value);
+        getModifiableXSSFSheet().setDisplayZeros(value);
     }
 
 
@@ -426,7 +515,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isDisplayZeros()
     {
-        return _sh.isDisplayZeros();
+        return getXSSFSheet().isDisplayZeros();
     }
 
     /**
@@ -436,7 +525,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setRightToLeft(boolean value)
     {
-       _sh.setRightToLeft(value);
+       getModifiableXSSFSheet().setRightToLeft(value);
     }
 
     /**
@@ -446,7 +535,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isRightToLeft()
     {
-       return _sh.isRightToLeft();
+       return getXSSFSheet().isRightToLeft();
     }
 
     /**
@@ -456,7 +545,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setFitToPage(boolean value)
     {
-        _sh.setFitToPage(value);
+        getModifiableXSSFSheet().setFitToPage(value);
     }
 
     /**
@@ -474,7 +563,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setRowSumsBelow(boolean value)
     {
-        _sh.setRowSumsBelow(value);
+        getModifiableXSSFSheet().setRowSumsBelow(value);
     }
 
     /**
@@ -492,7 +581,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setRowSumsRight(boolean value)
     {
-        _sh.setRowSumsRight(value);
+        getModifiableXSSFSheet().setRowSumsRight(value);
     }
 
     /**
@@ -502,7 +591,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getAutobreaks()
     {
-        return _sh.getAutobreaks();
+        return getXSSFSheet().getAutobreaks();
     }
 
     /**
@@ -513,7 +602,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getDisplayGuts()
     {
-        return _sh.getDisplayGuts();
+        return getXSSFSheet().getDisplayGuts();
     }
 
     /**
@@ -523,7 +612,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getFitToPage()
     {
-        return _sh.getFitToPage();
+        return getXSSFSheet().getFitToPage();
     }
 
     /**
@@ -541,7 +630,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getRowSumsBelow()
     {
-        return _sh.getRowSumsBelow();
+        return getXSSFSheet().getRowSumsBelow();
     }
 
     /**
@@ -559,7 +648,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getRowSumsRight()
     {
-        return _sh.getRowSumsRight();
+        return getXSSFSheet().getRowSumsRight();
     }
 
     /**
@@ -571,7 +660,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isPrintGridlines()
     {
-        return _sh.isPrintGridlines();
+        return getXSSFSheet().isPrintGridlines();
     }
 
     /**
@@ -585,7 +674,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setPrintGridlines(boolean show)
     {
-        _sh.setPrintGridlines(show);
+        getModifiableXSSFSheet().setPrintGridlines(show);
     }
 
     /**
@@ -595,7 +684,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public PrintSetup getPrintSetup()
     {
-        return _sh.getPrintSetup();
+        return getModifiableXSSFSheet().getPrintSetup();
     }
 
     /**
@@ -607,7 +696,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public Header getHeader()
     {
-        return _sh.getHeader();
+        return getModifiableXSSFSheet().getHeader();
     }
 
     /**
@@ -619,7 +708,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public Footer getFooter()
     {
-        return _sh.getFooter();
+        return getModifiableXSSFSheet().getFooter();
     }
 
     /**
@@ -632,7 +721,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setSelected(boolean value)
     {
-        _sh.setSelected(value);
+        getModifiableXSSFSheet().setSelected(value);
     }
 
     /**
@@ -643,7 +732,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public double getMargin(short margin)
     {
-        return _sh.getMargin(margin);
+        return getXSSFSheet().getMargin(margin);
     }
 
     /**
@@ -654,7 +743,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setMargin(short margin, double size)
     {
-        _sh.setMargin(margin,size);
+        getModifiableXSSFSheet().setMargin(margin,size);
     }
 
     /**
@@ -664,7 +753,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getProtect()
     {
-        return _sh.getProtect();
+        return getXSSFSheet().getProtect();
     }
 
     /**
@@ -673,7 +762,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void protectSheet(String password)
     {
-        _sh.protectSheet(password);
+        getModifiableXSSFSheet().protectSheet(password);
     }
 
     /**
@@ -683,7 +772,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean getScenarioProtect()
     {
-        return _sh.getScenarioProtect();
+        return getXSSFSheet().getScenarioProtect();
     }
 
     /**
@@ -696,7 +785,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setZoom(int numerator, int denominator)
     {
-        _sh.setZoom(numerator,denominator);
+        getModifiableXSSFSheet().setZoom(numerator,denominator);
     }
 
     /**
@@ -707,7 +796,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public short getTopRow()
     {
-        return _sh.getTopRow();
+        return getXSSFSheet().getTopRow();
     }
 
     /**
@@ -718,7 +807,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public short getLeftCol()
     {
-        return _sh.getLeftCol();
+        return getXSSFSheet().getLeftCol();
     }
 
     /**
@@ -730,7 +819,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void showInPane(short toprow, short leftcol)
     {
-        _sh.showInPane(toprow, leftcol);
+        getModifiableXSSFSheet().showInPane(toprow, leftcol);
     }
 
     /**
@@ -741,7 +830,7 @@ public class StreamSheet implements Sheet, Cloneable
      *  evaluation in POI is not possible.
      */
     public void setForceFormulaRecalculation(boolean value) {
-       _sh.setForceFormulaRecalculation(value);
+       getModifiableXSSFSheet().setForceFormulaRecalculation(value);
     }
 
     /**
@@ -749,7 +838,7 @@ public class StreamSheet implements Sheet, Cloneable
      *  workbook is opened.
      */
     public boolean getForceFormulaRecalculation() {
-       return _sh.getForceFormulaRecalculation();
+       return getXSSFSheet().getForceFormulaRecalculation();
     }
 
     /**
@@ -800,7 +889,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void createFreezePane(int colSplit, int rowSplit, int leftmostColumn, int topRow)
     {
-        _sh.createFreezePane(colSplit, rowSplit, leftmostColumn, topRow);
+        getModifiableXSSFSheet().createFreezePane(colSplit, rowSplit, leftmostColumn, topRow);
     }
 
     /**
@@ -810,7 +899,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void createFreezePane(int colSplit, int rowSplit)
     {
-        _sh.createFreezePane(colSplit,rowSplit);
+        getModifiableXSSFSheet().createFreezePane(colSplit,rowSplit);
     }
 
     /**
@@ -828,7 +917,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void createSplitPane(int xSplitPos, int ySplitPos, int leftmostColumn, int topRow, int activePane)
     {
-        _sh.createSplitPane(xSplitPos, ySplitPos, leftmostColumn, topRow, activePane);
+        getModifiableXSSFSheet().createSplitPane(xSplitPos, ySplitPos, leftmostColumn, topRow, activePane);
     }
 
     /**
@@ -838,7 +927,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public PaneInformation getPaneInformation()
     {
-        return _sh.getPaneInformation();
+        return getXSSFSheet().getPaneInformation();
     }
 
     /**
@@ -848,7 +937,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDisplayGridlines(boolean show)
     {
-        _sh.setDisplayGridlines(show);
+        getModifiableXSSFSheet().setDisplayGridlines(show);
     }
 
     /**
@@ -858,7 +947,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isDisplayGridlines()
     {
-        return _sh.isDisplayGridlines();
+        return getXSSFSheet().isDisplayGridlines();
     }
 
     /**
@@ -868,7 +957,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDisplayFormulas(boolean show)
     {
-        _sh.setDisplayFormulas(show);
+        getModifiableXSSFSheet().setDisplayFormulas(show);
     }
 
     /**
@@ -878,7 +967,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isDisplayFormulas()
     {
-        return _sh.isDisplayFormulas();
+        return getXSSFSheet().isDisplayFormulas();
     }
 
     /**
@@ -888,7 +977,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDisplayRowColHeadings(boolean show)
     {
-        _sh.setDisplayRowColHeadings(show);
+        getModifiableXSSFSheet().setDisplayRowColHeadings(show);
     }
 
     /**
@@ -897,7 +986,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isDisplayRowColHeadings()
     {
-        return _sh.isDisplayRowColHeadings();
+        return getXSSFSheet().isDisplayRowColHeadings();
     }
 
     /**
@@ -906,7 +995,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setRowBreak(int row)
     {
-        _sh.setRowBreak(row);
+        getModifiableXSSFSheet().setRowBreak(row);
     }
 
     /**
@@ -916,7 +1005,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isRowBroken(int row)
     {
-        return _sh.isRowBroken(row);
+        return getXSSFSheet().isRowBroken(row);
     }
 
     /**
@@ -925,7 +1014,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void removeRowBreak(int row)
     {
-        _sh.removeRowBreak(row);
+        getModifiableXSSFSheet().removeRowBreak(row);
     }
 
     /**
@@ -934,7 +1023,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public int[] getRowBreaks()
     {
-        return _sh.getRowBreaks();
+        return getXSSFSheet().getRowBreaks();
     }
 
     /**
@@ -943,7 +1032,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public int[] getColumnBreaks()
     {
-        return _sh.getColumnBreaks();
+        return getXSSFSheet().getColumnBreaks();
     }
 
     /**
@@ -952,7 +1041,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setColumnBreak(int column)
     {
-        _sh.setColumnBreak(column);
+        getModifiableXSSFSheet().setColumnBreak(column);
     }
 
     /**
@@ -962,7 +1051,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isColumnBroken(int column)
     {
-        return _sh.isColumnBroken(column);
+        return getXSSFSheet().isColumnBroken(column);
     }
 
     /**
@@ -971,7 +1060,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void removeColumnBreak(int column)
     {
-        _sh.removeColumnBreak(column);
+        getModifiableXSSFSheet().removeColumnBreak(column);
     }
 
     /**
@@ -982,7 +1071,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setColumnGroupCollapsed(int columnNumber, boolean collapsed)
     {
-        _sh.setColumnGroupCollapsed(columnNumber, collapsed);
+        getModifiableXSSFSheet().setColumnGroupCollapsed(columnNumber, collapsed);
     }
 
     /**
@@ -993,7 +1082,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void groupColumn(int fromColumn, int toColumn)
     {
-        _sh.groupColumn(fromColumn,toColumn);
+        getModifiableXSSFSheet().groupColumn(fromColumn,toColumn);
     }
 
     /**
@@ -1004,7 +1093,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void ungroupColumn(int fromColumn, int toColumn)
     {
-        _sh.ungroupColumn(fromColumn, toColumn);
+        getModifiableXSSFSheet().ungroupColumn(fromColumn, toColumn);
     }
 
     /**
@@ -1046,14 +1135,15 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void groupRow(int fromRow, int toRow)
     {
-        for(StreamRow row : _rows.subMap(fromRow, toRow + 1).values()){
+        for(Iterator<StreamRow> iter = _rows.iterator(fromRow, toRow); iter.hasNext();){
+            StreamRow row = iter.next();
             int level = row.getOutlineLevel() + 1;
             row.setOutlineLevel(level);
 
             if(level > outlineLevelRow) outlineLevelRow = level;
         }
 
-        CTWorksheet ct = _sh.getCTWorksheet();
+        CTWorksheet ct = getModifiableXSSFSheet().getCTWorksheet();
         CTSheetFormatPr pr = ct.isSetSheetFormatPr() ?
                 ct.getSheetFormatPr() :
                 ct.addNewSheetFormatPr();
@@ -1068,7 +1158,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void ungroupRow(int fromRow, int toRow)
     {
-        _sh.ungroupRow(fromRow, toRow);
+        getModifiableXSSFSheet().ungroupRow(fromRow, toRow);
     }
 
     /**
@@ -1079,7 +1169,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setRowGroupCollapsed(int row, boolean collapse)
     {
-        //_sh.setRowGroupCollapsed(row, collapse);
+        //getModifiableXSSFSheet().setRowGroupCollapsed(row, collapse);
         throw new RuntimeException("Not Implemented");
     }
 
@@ -1091,7 +1181,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void setDefaultColumnStyle(int column, CellStyle style)
     {
-        _sh.setDefaultColumnStyle(column, style);
+        getModifiableXSSFSheet().setDefaultColumnStyle(column, style);
     }
 
     /**
@@ -1146,7 +1236,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public Comment getCellComment(int row, int column)
     {
-        return _sh.getCellComment(row, column);
+        return getXSSFSheet().getCellComment(row, column);
     }
 
     /**
@@ -1156,7 +1246,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public Drawing createDrawingPatriarch()
     {
-        return _sh.createDrawingPatriarch();
+        return getModifiableXSSFSheet().createDrawingPatriarch();
     }
 
 
@@ -1177,7 +1267,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public String getSheetName()
     {
-        return _sh.getSheetName();
+        return _sh!=null?_sh.getSheetName():_sheetName;
     }
 
     /**
@@ -1186,7 +1276,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public boolean isSelected()
     {
-        return _sh.isSelected();
+        return getXSSFSheet().isSelected();
     }
 
 
@@ -1199,7 +1289,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public CellRange<? extends Cell> setArrayFormula(String formula, CellRangeAddress range)
     {
-        return _sh.setArrayFormula(formula, range);
+        return getModifiableXSSFSheet().setArrayFormula(formula, range);
     }
 
     /**
@@ -1210,12 +1300,12 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public CellRange<? extends Cell> removeArrayFormula(Cell cell)
     {
-        return _sh.removeArrayFormula(cell);
+        return getModifiableXSSFSheet().removeArrayFormula(cell);
     }
 
     public DataValidationHelper getDataValidationHelper()
     {
-        return _sh.getDataValidationHelper();
+        return getXSSFSheet().getDataValidationHelper();
     }
 
     /**
@@ -1224,7 +1314,7 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public void addValidationData(DataValidation dataValidation)
     {
-        _sh.addValidationData(dataValidation);
+        getModifiableXSSFSheet().addValidationData(dataValidation);
     }
 
     /**
@@ -1234,44 +1324,231 @@ public class StreamSheet implements Sheet, Cloneable
      */
     public AutoFilter setAutoFilter(CellRangeAddress range)
     {
-        return _sh.setAutoFilter(range);
+        return getModifiableXSSFSheet().setAutoFilter(range);
     }
 
     public SheetConditionalFormatting getSheetConditionalFormatting(){
-        return _sh.getSheetConditionalFormatting();
+        return getModifiableXSSFSheet().getSheetConditionalFormatting();
     }
 
 
     public CellRangeAddress getRepeatingRows() {
-      return _sh.getRepeatingRows();
+      return getXSSFSheet().getRepeatingRows();
     }
 
     public CellRangeAddress getRepeatingColumns() {
-      return _sh.getRepeatingColumns();
+      return getXSSFSheet().getRepeatingColumns();
     }
 
     public void setRepeatingRows(CellRangeAddress rowRangeRef) {
-      _sh.setRepeatingRows(rowRangeRef);
+      getModifiableXSSFSheet().setRepeatingRows(rowRangeRef);
     }
 
     public void setRepeatingColumns(CellRangeAddress columnRangeRef) {
-      _sh.setRepeatingColumns(columnRangeRef);
+      getModifiableXSSFSheet().setRepeatingColumns(columnRangeRef);
     }
 
 
 
 //end of interface implementation
+    /**
+     * Limits the number of rows kept in memory.
+     * <p>
+     * When a row is created and more than <code>rows</code> rows are in memory, the rows
+     * with the lowest index are flushed into the output: during a write with a
+     * {@link SheetWriter} or with direct row output straight into the worksheet entry,
+     * otherwise into the buffer returned by the next {@link #flushRows()}. Rows within
+     * the window can still be accessed and changed via {@link #getRow(int)}, e.g. to
+     * back-fill a running total a few rows later.
+     * </p>
+     *
+     * @param rows the number of rows kept in memory, -1 (the default) for no limit
+     * @throws IllegalArgumentException if <code>rows</code> is 0 or less than -1
+     */
+    public void setRowAccessWindow(int rows)
+    {
+        if (rows == 0 || rows < -1) {
+            throw new IllegalArgumentException("Row access window must be positive or -1: " + rows);
+        }
+        _rowAccessWindow = rows;
+    }
+
+    /**
+     * @return the number of rows kept in memory, -1 if not limited
+     */
+    public int getRowAccessWindow()
+    {
+        return _rowAccessWindow;
+    }
+
+    /**
+     * Limits the estimated memory held by the rows kept in memory, see
+     * {@link #setRowAccessWindow(int)}. The size of a row is estimated from its
+     * cells when the next row is created, the newest row is always kept.
+     *
+     * @param bytes the estimated number of bytes of the rows kept in memory,
+     *              -1 (the default) for no limit
+     * @throws IllegalArgumentException if <code>bytes</code> is less than -1
+     */
+    public void setRowAccessWindowBytes(long bytes)
+    {
+        if (bytes < -1) {
+            throw new IllegalArgumentException("Row access window must not be negative: " + bytes);
+        }
+        _rowAccessWindowBytes = bytes;
+        if (bytes < 0) {
+            for (StreamRow row : _rows) row._estimatedSize = 0;
+            _windowBytes = 0;
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes of the rows kept in memory, -1 if not limited
+     */
+    public long getRowAccessWindowBytes()
+    {
+        return _rowAccessWindowBytes;
+    }
+
+    /**
+     * Whether rows created from now on keep their cells in parallel arrays.
+     * <p>
+     * In this mode a row holds the types, numeric values, strings and style indexes
+     * of its cells in arrays instead of a cell object with a value object per cell,
+     * and cells returned by the row are lightweight views onto these arrays. A wide
+     * row access window then takes several times less memory. Cells with a formula,
+     * rich text, a comment or a hyperlink are still held as full cells.
+     * </p>
+     * <p>
+     * Cells are views: getting the same cell twice returns equal, but not identical,
+     * objects.
+     * </p>
+     *
+     * @param value <code>true</code> to store the cells of new rows compactly
+     * @see #setRowAccessWindow(int)
+     */
+    public void setCompactCellStorage(boolean value)
+    {
+        _compactCellStorage = value;
+    }
+
+    /**
+     * @return whether rows created from now on keep their cells in parallel arrays
+     */
+    public boolean isCompactCellStorage()
+    {
+        return _compactCellStorage;
+    }
+
+    /**
+     * Whether flushed rows and their cells are reset and reused by the next
+     * {@link #createRow(int)} and {@link Row#createCell(int)}.
+     * <p>
+     * With a row access window the rows are then built without allocating a row,
+     * cell or value object per cell once the first rows were flushed. In exchange
+     * a flushed row and its cells must no longer be used: a reference kept from
+     * before the flush may already stand for another row. Get rows and cells again
+     * via {@link #getRow(int)} and {@link Row#getCell(int)} instead of keeping them
+     * across <code>createRow</code> calls that may flush.
+     * </p>
+     * <p>
+     * Rows that are removed with {@link #removeRow(Row)} are not reused.
+     * </p>
+     *
+     * @param value <code>true</code> to reuse flushed rows and cells
+     * @see #setRowAccessWindow(int)
+     */
+    public void setRowRecycling(boolean value)
+    {
+        if (value) {
+            if (_recycledRows == null) _recycledRows = new ArrayDeque<StreamRow>();
+        } else {
+            _recycledRows = null;
+        }
+    }
+
+    /**
+     * @return whether flushed rows and their cells are reused
+     */
+    public boolean isRowRecycling()
+    {
+        return _recycledRows != null;
+    }
+
+    /**
+     * Whether the cached values of formulas are computed when their row is flushed.
+     * <p>
+     * Excel and most readers show the cached value of a formula until the
+     * workbook is recalculated, so without it formulas written by a streaming
+     * workbook show 0. A formula can only be computed while the cells it refers
+     * to are kept in memory: its own row and the rows created after it within the
+     * row access window, such as <code>B2*C2</code>, <code>IF(B2&gt;0,"yes","no")</code>,
+     * <code>ROUND(B2/3,2)</code> or <code>B2&amp;" "&amp;C2</code>. Formulas that refer
+     * to rows already flushed, to other sheets or that use functions POI does
+     * not implement keep the value set by the application; call
+     * {@link Workbook#setForceFormulaRecalculation(boolean)} if the workbook has such formulas.
+     * </p>
+     *
+     * @param value <code>true</code> to compute the values of formulas on flush
+     * @see #setRowAccessWindow(int)
+     */
+    public void setFormulaEvaluation(boolean value)
+    {
+        if (value) {
+            if (_evaluator == null) _evaluator = new RowWindowEvaluator(this);
+        } else {
+            _evaluator = null;
+        }
+    }
+
+    /**
+     * @return whether the cached values of formulas are computed when their row is flushed
+     */
+    public boolean isFormulaEvaluation()
+    {
+        return _evaluator != null;
+    }
+
+    private void applyRowAccessWindow()
+    {
+        boolean flushed = false;
+        while (_rowAccessWindow > 0 && _rows.size() > _rowAccessWindow) {
+            flushOneRow();
+            flushed = true;
+        }
+        while (_rowAccessWindowBytes >= 0 && _windowBytes > _rowAccessWindowBytes && _rows.size() > 1) {
+            flushOneRow();
+            flushed = true;
+        }
+        if (flushed && _sink != null && _writer.getBufferedSize() >= SINK_FLUSH_THRESHOLD) {
+            try {
+                _writer.writeTo(_sink);
+            } catch (IOException e) {
+                throw new RuntimeException("Error flushing rows", e);
+            }
+        }
+    }
+
     /**
      * Specifies how many rows can be accessed at most via getRow().
      * The exeeding rows (if any) are flushed to the disk while rows
      * with lower index values are flushed first.
+     * <p>
+     * If the workbook uses direct row output and is being written, the rows
+     * are encoded straight into the worksheet entry and an empty string is returned.
+     * </p>
+     *
+     * @return the XML of the flushed rows
+     * @see StreamWorkbook#setDirectRowOutput(boolean)
      */
     public String flushRows(int remaining) throws IOException
     {
-        try(StringWriter out = new StringWriter(2128)) {
-            while (_rows.size() > remaining) flushOneRow(out);
-            return out.toString();
+        while (_rows.size() > remaining) flushOneRow();
+        if (_sink != null) {
+            if (_writer.getBufferedSize() >= SINK_FLUSH_THRESHOLD) _writer.writeTo(_sink);
+            return "";
         }
+        return _writer.drainToString();
     }
 
     /**
@@ -1292,32 +1569,243 @@ public class StreamSheet implements Sheet, Cloneable
         }
     }
 
-    private void flushOneRow(Writer out) throws IOException
+    /**
+     * Writes a block of rows given as column arrays. The values are encoded
+     * straight from the arrays, no rows or cells are created.
+     * <p>
+     * The rows held in memory are flushed first, so the batch has to come after
+     * every row created or written before. Like flushed rows, the batch is written
+     * into the worksheet entry during a write with a {@link SheetWriter} or with
+     * direct row output, otherwise into the buffer returned by the next
+     * {@link #flushRows()}.
+     * </p>
+     *
+     * @param firstRow the 0-based row number of the first row of the batch
+     * @param batch    the rows
+     * @throws IllegalArgumentException if the batch does not come after the rows
+     *         written before or exceeds the last row of the sheet
+     * @throws IOException if the rows can't be written
+     */
+    public void writeBatch(int firstRow, ColumnBatch batch) throws IOException
+    {
+        int lastRow = Math.max(_writer.getLastWrittenRowNum(), _rows.isEmpty() ? -1 : _rows.lastRowNum());
+        if (firstRow <= lastRow) {
+            throw new IllegalArgumentException("Row " + firstRow + " has to be greater than the last row " + lastRow);
+        }
+        int maxrow = SpreadsheetVersion.EXCEL2007.getLastRowIndex();
+        if (firstRow + (long) batch.getRowCount() - 1 > maxrow) {
+            throw new IllegalArgumentException("Rows " + firstRow + ".." + (firstRow + (long) batch.getRowCount() - 1)
+                    + " outside allowable range (0.." + maxrow + ")");
+        }
+        while (!_rows.isEmpty()) flushOneRow();
+        int rowCount = batch.getRowCount();
+        for (int from = 0; from < rowCount; from += BATCH_CHUNK_ROWS) {
+            _writer.writeBatch(firstRow, batch, from, Math.min(rowCount, from + BATCH_CHUNK_ROWS));
+            if (_sink != null && _writer.getBufferedSize() >= SINK_FLUSH_THRESHOLD) _writer.writeTo(_sink);
+        }
+    }
+
+    /**
+     * Declares the columns of this sheet. The widths of the columns are applied,
+     * a style is created for every column with a number format, and the start tags
+     * of the declared columns are encoded for the rows written from now on.
+     * Later changes to the schema take effect when it is set again.
+     *
+     * @param schema the schema, <code>null</code> to remove it
+     * @see #createHeaderRow(int)
+     */
+    public void setColumnSchema(ColumnSchema schema)
     {
-        Integer firstRowNum = _rows.firstKey();
-        if (firstRowNum!=null) {
-            int rowIndex = firstRowNum.intValue();
-            StreamRow row = _rows.get(firstRowNum);
-            _writer.writeRow(rowIndex, row, out);
-            _rows.remove(firstRowNum);
+        _columnSchema = schema;
+        if (schema == null) {
+            _writer.setColumnSchema(null, null);
+            return;
+        }
+        short[] styles = new short[schema.getColumns().size()];
+        int i = 0;
+        for (ColumnSchema.Column column : schema.getColumns()) {
+            CellStyle style = column.getStyle();
+            if (column.getDataFormat() != null) {
+                // reuses an identical style, the schema may be set again and again
+                final short format = _workbook.createDataFormat().getFormat(column.getDataFormat());
+                style = _workbook.createCellStyle(style == null ? 0 : style.getIndex(), s -> s.setDataFormat(format));
+            }
+            styles[i++] = style == null ? 0 : style.getIndex();
+            if (column.getWidth() >= 0 && getColumnWidth(column.getColumnIndex()) != column.getWidth())
+                setColumnWidth(column.getColumnIndex(), column.getWidth());
         }
+        _writer.setColumnSchema(schema, styles);
     }
-    public void changeRowNum(StreamRow row, int newRowNum)
+
+    /**
+     * @return the schema set with {@link #setColumnSchema(ColumnSchema)}, <code>null</code> if none
+     */
+    public ColumnSchema getColumnSchema()
     {
+        return _columnSchema;
+    }
 
-        removeRow(row);
-        _rows.put(new Integer(newRowNum),row);
+    /**
+     * Creates a row with the header labels of the declared columns, in the header
+     * style of the schema.
+     *
+     * @param rownum row number
+     * @return the header row
+     * @throws IllegalStateException if no column schema is set
+     */
+    public Row createHeaderRow(int rownum)
+    {
+        if (_columnSchema == null) {
+            throw new IllegalStateException("No column schema set");
+        }
+        Row row = createRow(rownum);
+        for (ColumnSchema.Column column : _columnSchema.getColumns()) {
+            if (column.getHeader() == null) continue;
+            Cell cell = row.createCell(column.getColumnIndex(), Cell.CELL_TYPE_STRING);
+            cell.setCellValue(column.getHeader());
+            if (_columnSchema.getHeaderStyle() != null) cell.setCellStyle(_columnSchema.getHeaderStyle());
+        }
+        return row;
     }
 
-    public int getRowNum(StreamRow row)
+    /**
+     * Creates a formula that is shared by the cells of a range. Apply it to the
+     * cells with {@link SharedFormula#applyTo(Cell)}.
+     *
+     * @param formula the formula of the first cell of the range, e.g. <code>"B2*C2"</code>
+     * @param range   the cells that may share the formula
+     * @return the shared formula
+     * @throws org.apache.poi.ss.formula.FormulaParseException if the formula is invalid
+     */
+    public SharedFormula createSharedFormula(String formula, CellRangeAddress range)
+    {
+        return new SharedFormula(this, formula, range);
+    }
+
+    /**
+     * Opens the writer that pushes rows of this sheet into the worksheet entry.
+     * Only available from the {@link SheetWriter} of the workbook while it is
+     * written, all calls for the same sheet return the same writer.
+     *
+     * @return the row writer of this sheet
+     * @throws IllegalStateException if the sheet is not written by a {@link SheetWriter}
+     */
+    public RowWriter openRowWriter()
+    {
+        if (_rowWriter == null) {
+            throw new IllegalStateException("Rows can only be pushed from the SheetWriter while the workbook is written");
+        }
+        return _rowWriter;
+    }
+
+    /**
+     * Writes the sheet data supplied by the sheet writer or the stream source of
+     * the workbook to the worksheet entry.
+     *
+     * @param strings the shared strings string cells may refer to, <code>null</code>
+     *                to write all strings inline
+     */
+    void writeRows(OutputStream out, SharedStrings strings) throws IOException
+    {
+        _writer.setSharedStrings(strings, _workbook.getSharedStringsMode());
+        try
+        {
+            writeRows(out);
+        }
+        finally
+        {
+            _writer.setSharedStrings(null, SharedStringsMode.INLINE);
+            _writer.endSheetData();
+        }
+    }
+
+    private void writeRows(OutputStream out) throws IOException
+    {
+        SheetWriter sheetWriter = _workbook.getSheetWriter();
+        if (sheetWriter != null) {
+            _sink = out;
+            _rowWriter = new RowWriter(this);
+            try
+            {
+                sheetWriter.writeSheet(this);
+                flushRows(0);
+                _writer.writeTo(out);
+            }
+            finally
+            {
+                _sink = null;
+                _rowWriter = null;
+            }
+        } else {
+            writeRows(_workbook.getStreamSource(), out);
+        }
+    }
+
+    /**
+     * Writes the sheet data supplied by the stream source to the worksheet entry.
+     * In direct row output mode the entry is bound as sink for the duration of
+     * the call so that {@link #flushRows()} encodes rows straight into it.
+     */
+    private void writeRows(Function<StreamSheet, Stream<String>> sheetRows, OutputStream out) throws IOException
     {
-        for(Iterator<Map.Entry<Integer, StreamRow>> iter = _rows.entrySet().iterator(); iter.hasNext();)
+        _sink = _workbook.isDirectRowOutput() ? out : null;
+        try
+        {
+            Utf8Buffer strings = new Utf8Buffer(1024);
+            sheetRows.apply(this).forEach(str -> {
+                try {
+                    if (str.isEmpty()) {
+                        if (_writer.getBufferedSize() >= SINK_FLUSH_THRESHOLD) _writer.writeTo(out);
+                        return;
+                    }
+                    // rows encoded directly precede the returned XML
+                    _writer.writeTo(out);
+                    strings.writeUtf8(str);
+                    strings.writeTo(out);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            _writer.writeTo(out);
+        }
+        finally
         {
-            Map.Entry<Integer, StreamRow> entry=iter.next();
-            if(entry.getValue()==row)
-                return entry.getKey().intValue();
+            _sink = null;
+        }
+    }
+
+    private void flushOneRow()
+    {
+        if (!_rows.isEmpty()) {
+            int rowIndex = _rows.firstRowNum();
+            if (_evaluator != null) _evaluator.evaluateRow(_rows.get(rowIndex));
+            StreamRow row = _rows.removeFirst();
+            _writer.writeRow(rowIndex, row);
+            _windowBytes -= row._estimatedSize;
+            if (row == _lastCreatedRow) _lastCreatedRow = null;
+            if (_recycledRows != null && _recycledRows.size() < MAX_RECYCLED_ROWS) {
+                row.recycle();
+                _recycledRows.addLast(row);
+            }
         }
-        return -1;
+    }
+    public void changeRowNum(StreamRow row, int newRowNum)
+    {
+        boolean held=_rows.get(row._rowNum)==row;
+        removeRow(row);
+        if(held) _windowBytes+=row._estimatedSize;
+        row._rowNum=newRowNum;
+        StreamRow replaced=_rows.get(newRowNum);
+        if(replaced!=null) _windowBytes-=replaced._estimatedSize;
+        _rows.put(newRowNum,row);
+    }
+
+    /**
+     * @return the row number of the row, -1 if the row is not held by this sheet (any more)
+     */
+    public int getRowNum(StreamRow row)
+    {
+        return _rows.get(row._rowNum)==row ? row._rowNum : -1;
     }
 
 }
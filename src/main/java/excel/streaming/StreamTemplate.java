@@ -0,0 +1,521 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTRst;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Pre-serialized package of a {@link StreamWorkbook}.
+ * <p>
+ * A template is compiled once from a configured workbook. It holds every
+ * non-sheet part of the package as bytes and every worksheet split into the
+ * XML before and after its <code>sheetData</code> element, so that workbooks
+ * stamped from it via {@link #createWorkbook()} only have to stream their
+ * rows when written.
+ * </p>
+ * <p>
+ * A template is immutable and may be shared between threads. The workbooks
+ * stamped from it share its XSSF model and therefore can't change sheets,
+ * styles, fonts or the sheet layout, see {@link #createWorkbook()}.
+ * </p>
+ */
+public class StreamTemplate
+{
+    private final XSSFWorkbook _wb;
+    private final List<Part> _parts;
+    /** the shared strings part, <code>null</code> if the package has none */
+    private final Part _sharedStringsPart;
+    /** the <code>si</code> elements of the shared strings part */
+    private final byte[] _sharedStringItems;
+    /** the shared strings of the template, <code>null</code> for rich text */
+    private final String[] _sharedStrings;
+    private final long _sharedStringCount;
+
+    private StreamTemplate(XSSFWorkbook wb, List<Part> parts, Part sharedStringsPart, String[] sharedStrings, long sharedStringCount)
+    {
+        _wb=wb;
+        _parts=Collections.unmodifiableList(parts);
+        _sharedStringsPart=sharedStringsPart;
+        _sharedStringItems=sharedStringsPart!=null?SharedStrings.getItems(sharedStringsPart._data):null;
+        _sharedStrings=sharedStrings;
+        _sharedStringCount=sharedStringCount;
+    }
+
+    /**
+     * Serializes the workbook once and splits the package into template parts.
+     *
+     * @param workbook the workbook providing sheets, styles and layout
+     * @return the compiled template
+     * @throws IOException if the workbook can't be serialized
+     */
+    static StreamTemplate compile(StreamWorkbook workbook) throws IOException
+    {
+        XSSFWorkbook wb=workbook.getXSSFWorkbook();
+        TemplateOutputStream tmpl = new TemplateOutputStream();
+        wb.write(tmpl);
+
+        List<Part> parts=new ArrayList<Part>();
+        ZipInputStream zis = new ZipInputStream(tmpl.toInputStream());
+        try
+        {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null)
+            {
+                XSSFSheet xSheet=workbook.getSheetFromZipEntryName(ze.getName());
+                if(xSheet!=null)
+                {
+                    byte[][] fragments=splitWorksheet(readFully(zis));
+                    parts.add(new Part(ze.getName(),wb.getSheetIndex(xSheet),fragments[0],fragments[1]));
+                }
+                else
+                {
+                    parts.add(new Part(ze.getName(),-1,readFully(zis),null));
+                }
+                zis.closeEntry();
+            }
+        }
+        finally
+        {
+            zis.close();
+        }
+        attachCompressedData(parts,tmpl.buffer(),tmpl.size());
+
+        SharedStringsTable sst=wb.getSharedStringSource();
+        Part sharedStringsPart=null;
+        if(sst!=null)
+        {
+            String name=sst.getPackagePart().getPartName().getName().substring(1);
+            for(Part part : parts)
+                if(part._name.equals(name)) sharedStringsPart=part;
+        }
+        if(sharedStringsPart==null)
+            return new StreamTemplate(wb,parts,null,null,0);
+        String[] sharedStrings=new String[sst.getUniqueCount()];
+        for(int i=0;i<sharedStrings.length;i++)
+        {
+            CTRst entry=sst.getEntryAt(i);
+            if(entry.isSetT()&&entry.sizeOfRArray()==0&&entry.sizeOfRPhArray()==0)
+                sharedStrings[i]=entry.getT();
+        }
+        return new StreamTemplate(wb,parts,sharedStringsPart,sharedStrings,sst.getCount());
+    }
+
+    /**
+     * Generates the package of a brand-new workbook that has no XSSF model from
+     * its sheets, without serializing and splitting an XSSF workbook.
+     *
+     * @param workbook a workbook without XSSF model
+     * @return a template with the default styles and the sheets of the workbook
+     */
+    static StreamTemplate compileLean(StreamWorkbook workbook)
+    {
+        List<Part> parts=LeanPackage.createParts(workbook);
+        Part sharedStringsPart=null;
+        for(Part part : parts)
+            if(part._name.equals(LeanPackage.SHARED_STRINGS)) sharedStringsPart=part;
+        return new StreamTemplate(null,parts,sharedStringsPart,new String[0],0);
+    }
+
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+
+    /**
+     * Reads the central directory of the serialized package and keeps the
+     * compressed bytes of every non-sheet part together with its CRC, so that
+     * these parts are copied into the written package as they are.
+     * <p>
+     * Parts are left without compressed data if the directory can't be read,
+     * e.g. for a Zip64 archive, and are then compressed on every write.
+     * </p>
+     */
+    static void attachCompressedData(List<Part> parts, byte[] zip, int length)
+    {
+        int end=-1;
+        for(int i=length-22;i>=Math.max(0,length-22-0xFFFF);i--)
+        {
+            if(getInt(zip,i)==END_SIG)
+            {
+                end=i;
+                break;
+            }
+        }
+        if(end<0) return;
+        int count=getShort(zip,end+10);
+        long cenOffset=getInt(zip,end+16)&0xFFFFFFFFL;
+        if(count==0xFFFF||cenOffset>=length) return;
+        Map<String,Part> byName=new HashMap<String,Part>();
+        for(Part part : parts)
+            if(!part.isSheet()) byName.put(part._name,part);
+        int pos=(int)cenOffset;
+        for(int n=0;n<count;n++)
+        {
+            if(pos+46>length||getInt(zip,pos)!=CEN_SIG) return;
+            int method=getShort(zip,pos+10);
+            long crc=getInt(zip,pos+16)&0xFFFFFFFFL;
+            long compressedSize=getInt(zip,pos+20)&0xFFFFFFFFL;
+            long size=getInt(zip,pos+24)&0xFFFFFFFFL;
+            int nameLength=getShort(zip,pos+28);
+            int extraLength=getShort(zip,pos+30);
+            int commentLength=getShort(zip,pos+32);
+            long localOffset=getInt(zip,pos+42)&0xFFFFFFFFL;
+            String name=new String(zip,pos+46,nameLength,StandardCharsets.UTF_8);
+            pos+=46+nameLength+extraLength+commentLength;
+
+            Part part=byName.get(name);
+            if(part==null||(method!=ZipWriter.METHOD_DEFLATED&&method!=ZipWriter.METHOD_STORED)
+                    ||size!=part._data.length||localOffset+30>length) continue;
+            int dataStart=(int)localOffset+30+getShort(zip,(int)localOffset+26)+getShort(zip,(int)localOffset+28);
+            if(dataStart+compressedSize>length) continue;
+            part._method=method;
+            part._crc=crc;
+            part._compressed=Arrays.copyOfRange(zip,dataStart,dataStart+(int)compressedSize);
+        }
+    }
+
+    private static int getShort(byte[] b, int pos)
+    {
+        return (b[pos]&0xFF)|(b[pos+1]&0xFF)<<8;
+    }
+
+    private static int getInt(byte[] b, int pos)
+    {
+        return getShort(b,pos)|getShort(b,pos+2)<<16;
+    }
+
+    /**
+     * Creates a new workbook stamped from this template.
+     * <p>
+     * The workbook has the sheets of the template and shares its styles. Sheets,
+     * styles and layout are taken from the template when written; methods that
+     * would change them, such as <code>createCellStyle()</code>, <code>createFont()</code>
+     * or <code>setColumnWidth</code>, throw an <code>IllegalStateException</code>.
+     * Existing styles can be looked up with {@link StreamWorkbook#createCellStyle(java.util.function.Consumer)}
+     * and {@link StreamWorkbook#createDataFormat()}. Only the rows supplied by its
+     * stream source are written.
+     * </p>
+     *
+     * @return a new workbook ready to stream rows into the template sheets
+     */
+    public StreamWorkbook createWorkbook()
+    {
+        return new StreamWorkbook(this);
+    }
+
+    /**
+     * @return the workbook this template was compiled from
+     */
+    public XSSFWorkbook getXSSFWorkbook()
+    {
+        return _wb;
+    }
+
+    /**
+     * Writes the package with the rows of every sheet of <code>workbook</code>
+     * injected into the pre-serialized worksheet parts.
+     */
+    void write(StreamWorkbook workbook, OutputStream out) throws IOException
+    {
+        ZipWriter zip = new ZipWriter(out,workbook.getCompressionProfile(),workbook.getAdaptiveCompressionTarget(),workbook.getCompressionExecutor());
+        SharedStrings strings=null;
+        if(_sharedStringsPart!=null&&workbook.getSharedStringsMode()!=SharedStringsMode.INLINE)
+            strings=new SharedStrings(_sharedStrings,_sharedStringCount,workbook.getSharedStringsMemoryLimit());
+        Map<Part,FutureTask<OutputStream>> spooled=spoolSheets(workbook,zip,strings);
+        try
+        {
+            for(Part part : _parts)
+            {
+                if(part==_sharedStringsPart&&strings!=null)
+                {
+                    // written last, once the sheets have added their strings
+                    continue;
+                }
+                if(part.isSheet())
+                {
+                    FutureTask<OutputStream> task=spooled.get(part);
+                    if(task!=null)
+                    {
+                        zip.writeSpooledEntry(getSpooled(task,part));
+                    }
+                    else
+                    {
+                        OutputStream entry=zip.beginEntry(part._name);
+                        writeSheet(workbook,part,entry,strings);
+                    }
+                }
+                else if(part._compressed!=null&&workbook.getCompressionProfile()!=CompressionProfile.STORED)
+                {
+                    // unchanged part, copied without an inflate/deflate cycle
+                    zip.writeRawEntry(part._name,part._method,part._crc,part._data.length,part._compressed,0,part._compressed.length);
+                }
+                else
+                {
+                    zip.writeEntry(part._name,part._data);
+                }
+            }
+            if(strings!=null)
+            {
+                OutputStream entry=zip.beginEntry(_sharedStringsPart._name);
+                strings.writeTo(entry,_sharedStringItems);
+                entry.close();
+            }
+        }
+        finally
+        {
+            for(FutureTask<OutputStream> task : spooled.values())
+                task.cancel(false);
+            zip.close();
+        }
+    }
+
+    /**
+     * Starts rendering and deflating every worksheet into its own spool buffer
+     * on the sheet executor of the workbook.
+     *
+     * @return the pending worksheet entries, empty if sheets are written one after another
+     */
+    private Map<Part,FutureTask<OutputStream>> spoolSheets(final StreamWorkbook workbook, final ZipWriter zip, final SharedStrings strings)
+    {
+        Executor executor=workbook.getSheetExecutor();
+        if(executor==null||workbook.getNumberOfSheets()<2)
+            return Collections.emptyMap();
+        Map<Part,FutureTask<OutputStream>> spooled=new HashMap<Part,FutureTask<OutputStream>>();
+        for(final Part part : _parts)
+        {
+            if(!part.isSheet()) continue;
+            FutureTask<OutputStream> task=new FutureTask<OutputStream>(new Callable<OutputStream>()
+            {
+                public OutputStream call() throws IOException
+                {
+                    OutputStream entry=zip.spoolEntry(part._name);
+                    writeSheet(workbook,part,entry,strings);
+                    return entry;
+                }
+            });
+            spooled.put(part,task);
+            executor.execute(task);
+        }
+        return spooled;
+    }
+
+    private static void writeSheet(StreamWorkbook workbook, Part part, OutputStream entry, SharedStrings strings) throws IOException
+    {
+        StreamSheet sxSheet=(StreamSheet)workbook.getSheetAt(part._sheetIndex);
+        entry.write(part._data);
+        sxSheet.writeRows(entry,strings);
+        entry.write(part._tail);
+        entry.close();
+    }
+
+    private static OutputStream getSpooled(FutureTask<OutputStream> task, Part part) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "+part._name);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause=e.getCause();
+            if(cause instanceof IOException) throw (IOException)cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if(cause instanceof Error) throw (Error)cause;
+            throw new IOException("Failed to write "+part._name,cause);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        byte[] chunk = new byte[16 * 1024];
+        int count;
+        while ((count = in.read(chunk)) >=0 ) {
+          out.write(chunk,0,count);
+        }
+        return out.toByteArray();
+    }
+    private static final byte[] SHEET_DATA_START = bytes("<sheetData");
+    private static final byte[] SHEET_DATA_END = bytes("</sheetData>");
+    private static final byte[] EMPTY_SHEET_DATA_START = bytes("<sheetData>\n");
+
+    /**
+     * Splits the UTF-8 encoded worksheet into the XML up to and including the
+     * start tag of "sheetData" and the XML starting with its end tag.
+     * <p>
+     * The markup searched for is plain ASCII, which can't occur inside a multi-byte
+     * UTF-8 sequence, so the worksheet is searched as bytes and both fragments are
+     * copied with bulk array copies. An empty element <code>&lt;sheetData/&gt;</code>
+     * is expanded into a start and an end tag.
+     * </p>
+     *
+     * @return the fragment before the rows and the fragment after the rows
+     */
+    static byte[][] splitWorksheet(byte[] xml)
+    {
+        int start=indexOf(xml,SHEET_DATA_START,0);
+        while(start>=0&&!isTagEnd(xml,start+SHEET_DATA_START.length))
+            start=indexOf(xml,SHEET_DATA_START,start+1);
+        if(start<0)
+        {
+            // no sheetData at all, append it
+            return new byte[][]{concat(xml,0,xml.length,EMPTY_SHEET_DATA_START),SHEET_DATA_END.clone()};
+        }
+        int gt=indexOf(xml,(byte)'>',start);
+        if(gt<0)
+            throw new IllegalArgumentException("Unterminated sheetData element in worksheet");
+        if(xml[gt-1]=='/')
+        {
+            // <sheetData/>, the attributes (if any) are dropped together with the element
+            byte[] head=concat(xml,0,start,EMPTY_SHEET_DATA_START);
+            byte[] tail=concat(SHEET_DATA_END,0,SHEET_DATA_END.length,null,xml,gt+1,xml.length-gt-1);
+            return new byte[][]{head,tail};
+        }
+        int end=indexOf(xml,SHEET_DATA_END,gt+1);
+        if(end<0)
+            throw new IllegalArgumentException("Missing </sheetData> in worksheet");
+        byte[] head=new byte[end];
+        System.arraycopy(xml,0,head,0,end);
+        byte[] tail=new byte[xml.length-end];
+        System.arraycopy(xml,end,tail,0,tail.length);
+        return new byte[][]{head,tail};
+    }
+
+    private static boolean isTagEnd(byte[] xml, int pos)
+    {
+        if(pos>=xml.length) return false;
+        byte b=xml[pos];
+        return b=='>'||b=='/'||b==' '||b=='\t'||b=='\r'||b=='\n';
+    }
+
+    static int indexOf(byte[] data, byte b, int from)
+    {
+        for(int i=from;i<data.length;i++)
+            if(data[i]==b) return i;
+        return -1;
+    }
+
+    static int indexOf(byte[] data, byte[] pattern, int from)
+    {
+        byte first=pattern[0];
+        int max=data.length-pattern.length;
+        for(int i=from;i<=max;i++)
+        {
+            if(data[i]!=first) continue;
+            int j=1;
+            while(j<pattern.length&&data[i+j]==pattern[j]) j++;
+            if(j==pattern.length) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] concat(byte[] a, int aOff, int aLen, byte[] b)
+    {
+        return concat(a,aOff,aLen,b,null,0,0);
+    }
+
+    private static byte[] concat(byte[] a, int aOff, int aLen, byte[] b, byte[] c, int cOff, int cLen)
+    {
+        int bLen=b==null?0:b.length;
+        byte[] result=new byte[aLen+bLen+cLen];
+        System.arraycopy(a,aOff,result,0,aLen);
+        if(b!=null) System.arraycopy(b,0,result,aLen,bLen);
+        if(c!=null) System.arraycopy(c,cOff,result,aLen+bLen,cLen);
+        return result;
+    }
+
+    private static byte[] bytes(String ascii)
+    {
+        try
+        {
+            return ascii.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A single entry of the template package. Worksheet parts keep the XML
+     * before the sheet data in <code>_data</code> and the XML after it in
+     * <code>_tail</code>.
+     */
+    static class Part
+    {
+        final String _name;
+        final int _sheetIndex;
+        final byte[] _data;
+        final byte[] _tail;
+        /** the part as found in the serialized package, <code>null</code> if not available */
+        byte[] _compressed;
+        int _method;
+        long _crc;
+
+        Part(String name, int sheetIndex, byte[] data, byte[] tail)
+        {
+            _name=name;
+            _sheetIndex=sheetIndex;
+            _data=data;
+            _tail=tail;
+        }
+        boolean isSheet()
+        {
+            return _sheetIndex>=0;
+        }
+    }
+
+    /**
+     * Holds the serialized template package and hands its buffer to the reader
+     * without the extra copy made by {@link ByteArrayOutputStream#toByteArray()}.
+     */
+    private static class TemplateOutputStream extends ByteArrayOutputStream
+    {
+        TemplateOutputStream()
+        {
+            super(64 * 1024);
+        }
+        InputStream toInputStream()
+        {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+        byte[] buffer()
+        {
+            return buf;
+        }
+    }
+}
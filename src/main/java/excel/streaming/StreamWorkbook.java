@@ -21,18 +21,23 @@ import org.apache.poi.ss.formula.udf.UDFFinder;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.usermodel.Row.MissingCellPolicy;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.WorkbookUtil;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTXf;
 
-import java.io.*;
-import java.util.Enumeration;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Streaming version of XSSFWorkbook implementing the "BigGridDemo" strategy.
@@ -41,18 +46,55 @@ import java.util.zip.ZipOutputStream;
 */
 public class StreamWorkbook implements Workbook
 {
+    /** the XSSF model, <code>null</code> until a brand-new workbook needs it */
     XSSFWorkbook _wb;
+    /** the sheets while the workbook has no XSSF model */
+    private ArrayList<StreamSheet> _leanSheets;
+    /** the policy of this workbook, not kept in a model that may be shared with a template */
+    private MissingCellPolicy _missingCellPolicy = Row.RETURN_NULL_AND_BLANK;
 
     HashMap<StreamSheet,XSSFSheet> _sxFromXHash=new HashMap<StreamSheet,XSSFSheet>();
     HashMap<XSSFSheet, StreamSheet> _xFromSxHash=new HashMap<XSSFSheet, StreamSheet>();
 
     private Function<StreamSheet, Stream<String>> streamSource;
 
+    private SheetWriter _sheetWriter;
+
+    /** style indexes by cell format, built by the first {@link #createCellStyle(Consumer)} */
+    private HashMap<String,Short> _stylesByFormat;
+
+    /** keeps the borders and fills of the candidate styles of {@link #createCellStyle(Consumer)} */
+    private ScratchStyles _scratchStyles;
+
+    private StreamTemplate _template;
+
+    private boolean _directRowOutput;
+
+    private boolean _compactCellReferences;
+
+    private CompressionProfile _compressionProfile = CompressionProfile.DEFAULT;
+
+    private double _adaptiveCompressionTarget = DEFAULT_ADAPTIVE_COMPRESSION_TARGET;
+
+    private SharedStringsMode _sharedStringsMode = SharedStringsMode.INLINE;
+
+    private long _sharedStringsMemoryLimit = DEFAULT_SHARED_STRINGS_MEMORY_LIMIT;
+
+    private Executor _compressionExecutor;
+
+    private Executor _sheetExecutor;
+
+    /** default throughput in MB/s aimed at by {@link CompressionProfile#ADAPTIVE} */
+    public static final double DEFAULT_ADAPTIVE_COMPRESSION_TARGET = 50;
+
+    /** default estimated number of bytes the shared strings may take, 32MB */
+    public static final long DEFAULT_SHARED_STRINGS_MEMORY_LIMIT = 32L * 1024 * 1024;
+
     /**
      * Construct a new workbook
      */
     public StreamWorkbook(){
-    	this(null /*workbook*/);
+    	this((XSSFWorkbook)null /*workbook*/);
     }
 
     /**
@@ -77,11 +119,12 @@ public class StreamWorkbook implements Workbook
     public StreamWorkbook(XSSFWorkbook workbook){
     	if (workbook == null)
     	{
-    		_wb=new XSSFWorkbook();
+    		_leanSheets=new ArrayList<StreamSheet>();
     	}
     	else
     	{
     		_wb=workbook;
+            _missingCellPolicy=workbook.getMissingCellPolicy();
             for ( int i = 0; i < _wb.getNumberOfSheets(); i++ )
             {
                 XSSFSheet sheet = _wb.getSheetAt( i );
@@ -90,8 +133,20 @@ public class StreamWorkbook implements Workbook
     	}
     }
 
+    /**
+     * Constructs a workbook stamped from a compiled template.
+     *
+     * @see StreamTemplate#createWorkbook()
+     */
+    StreamWorkbook(StreamTemplate template){
+        this(template.getXSSFWorkbook());
+        _template=template;
+    }
+
     SheetDataWriter createSheetDataWriter() throws IOException {
-        return new SheetDataWriter();
+        SheetDataWriter writer = new SheetDataWriter();
+        writer.setCompactReferences(_compactCellReferences);
+        return writer;
     }
 
     XSSFSheet getXSSFSheet(StreamSheet sheet)
@@ -117,7 +172,7 @@ public class StreamWorkbook implements Workbook
         _sxFromXHash.remove(sxSheet);
         _xFromSxHash.remove(xSheet);
     }
-    private XSSFSheet getSheetFromZipEntryName(String sheetRef)
+    XSSFSheet getSheetFromZipEntryName(String sheetRef)
     {
         for(XSSFSheet sheet : _sxFromXHash.values())
         {
@@ -125,164 +180,40 @@ public class StreamWorkbook implements Workbook
         }
         return null;
     }
-    private void injectData(File zipfile, OutputStream out, Function<StreamSheet, Stream<String>> sheetRows) throws IOException
+    /**
+     * Returns the XSSF model of this workbook.
+     * <p>
+     * A brand-new workbook creates its model on first use only, e.g. when a cell
+     * style is created. A workbook written without one is generated directly
+     * from its sheets and rows, see {@link #write(OutputStream)}.
+     * </p>
+     *
+     * @return the XSSF model of this workbook
+     */
+    public XSSFWorkbook getXSSFWorkbook()
     {
-        ZipFile zip = new ZipFile(zipfile);
-        try
+        if(_wb==null)
         {
-            ZipOutputStream zos = new ZipOutputStream(out);
-            try
+            XSSFWorkbook wb=new XSSFWorkbook();
+            wb.setMissingCellPolicy(_missingCellPolicy);
+            for(StreamSheet sheet : _leanSheets)
             {
-                @SuppressWarnings("unchecked")
-                Enumeration<ZipEntry> en = (Enumeration<ZipEntry>) zip.entries();
-                while (en.hasMoreElements())
-                {
-                    ZipEntry ze = en.nextElement();
-                    zos.putNextEntry(new ZipEntry(ze.getName()));
-                    InputStream is = zip.getInputStream(ze);
-                    XSSFSheet xSheet=getSheetFromZipEntryName(ze.getName());
-                    if(xSheet!=null)
-                    {
-                        StreamSheet sxSheet=getSXSSFSheet(xSheet);
-                        Stream<String> xis = sheetRows.apply(sxSheet);
-                        copyStreamAndInjectWorksheet(is,zos,xis);
-                    }
-                    else
-                    {
-                        copyStream(is, zos);
-                    }
-                    is.close();
-                }
+                XSSFSheet xSheet=wb.createSheet(sheet._sheetName);
+                sheet._sh=xSheet;
+                registerSheetMapping(sheet,xSheet);
             }
-            finally
-            {
-                zos.close();
-            }
-        }
-        finally
-        {
-            zip.close();
+            _leanSheets=null;
+            _wb=wb;
         }
-    }
-    private static void copyStream(Stream<String> in, Writer out) throws IOException {
-        in.forEach(str -> {
-            try {
-                out.write(str);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
-    }
-    private static void copyStream(InputStream in, OutputStream out) throws IOException {
-        byte[] chunk = new byte[1024];
-        int count;
-        while ((count = in.read(chunk)) >=0 ) {
-          out.write(chunk,0,count);
-        }
-    }
-    private static void copyStreamAndInjectWorksheet(InputStream in, OutputStream out, Stream<String> worksheetData) throws IOException {
-        InputStreamReader inReader=new InputStreamReader(in,"UTF-8"); //TODO: Is it always UTF-8 or do we need to read the xml encoding declaration in the file? If not, we should perhaps use a SAX reader instead.
-        OutputStreamWriter outWriter=new OutputStreamWriter(out,"UTF-8");
-        boolean needsStartTag = true;
-        int c;
-        int pos=0;
-        String s="<sheetData";
-        int n=s.length();
-//Copy from "in" to "out" up to the string "<sheetData/>" or "</sheetData>" (excluding).
-        while(((c=inReader.read())!=-1))
-        {
-            if(c==s.charAt(pos))
-            {
-                pos++;
-                if(pos==n)
-                {
-                	if ("<sheetData".equals(s))
-                	{
-                    	c = inReader.read();
-                    	if (c == -1)
-                    	{
-                    		outWriter.write(s);
-                    		break;
-                    	}
-                    	if (c == '>')
-                    	{
-                    		// Found <sheetData>
-                    		outWriter.write(s);
-                    		outWriter.write(c);
-                    		s = "</sheetData>";
-                    		n = s.length();
-                    		pos = 0;
-                    		needsStartTag = false;
-                    		continue;
-                    	}
-                    	if (c == '/')
-                    	{
-                    		// Found <sheetData/
-                        	c = inReader.read();
-                        	if (c == -1)
-                        	{
-                        		outWriter.write(s);
-                        		break;
-                        	}
-                        	if (c == '>')
-                        	{
-                        		// Found <sheetData/>
-                        		break;
-                        	}
-
-                    		outWriter.write(s);
-                    		outWriter.write('/');
-                    		outWriter.write(c);
-                    		pos = 0;
-                    		continue;
-                    	}
-
-                		outWriter.write(s);
-                		outWriter.write('/');
-                		outWriter.write(c);
-                		pos = 0;
-                		continue;
-                	}
-                	else
-                	{
-                		// Found </sheetData>
-                    	break;
-                	}
-                }
-            }
-            else
-            {
-                if(pos>0) outWriter.write(s,0,pos);
-                if(c==s.charAt(0))
-                {
-                    pos=1;
-                }
-                else
-                {
-                    outWriter.write(c);
-                    pos=0;
-                }
-            }
-        }
-        outWriter.flush();
-        if (needsStartTag)
-        {
-        	outWriter.write("<sheetData>\n");
-        	outWriter.flush();
-        }
-//Copy the worksheet data to "outWriter".
-        copyStream(worksheetData,outWriter);
-        outWriter.write("</sheetData>");
-        outWriter.flush();
-//Copy the rest of "in" to "out".
-        while(((c=inReader.read())!=-1))
-            outWriter.write(c);
-        outWriter.flush();
+        return _wb;
     }
 
-    public XSSFWorkbook getXSSFWorkbook()
+    /**
+     * @return whether the workbook has no XSSF model (yet)
+     */
+    boolean isLean()
     {
-        return _wb;
+        return _wb==null;
     }
 
 //start of interface implementation
@@ -296,7 +227,7 @@ public class StreamWorkbook implements Workbook
      */
     public int getActiveSheetIndex()
     {
-        return _wb.getActiveSheetIndex();
+        return getXSSFWorkbook().getActiveSheetIndex();
     }
 
     /**
@@ -308,7 +239,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setActiveSheet(int sheetIndex)
     {
-        _wb.setActiveSheet(sheetIndex);
+        getModifiableXSSFWorkbook().setActiveSheet(sheetIndex);
     }
 
     /**
@@ -318,7 +249,7 @@ public class StreamWorkbook implements Workbook
      */
     public int getFirstVisibleTab()
     {
-        return _wb.getFirstVisibleTab();
+        return getXSSFWorkbook().getFirstVisibleTab();
     }
 
     /**
@@ -328,7 +259,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setFirstVisibleTab(int sheetIndex)
     {
-        _wb.setFirstVisibleTab(sheetIndex);
+        getModifiableXSSFWorkbook().setFirstVisibleTab(sheetIndex);
     }
 
     /**
@@ -339,7 +270,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setSheetOrder(String sheetname, int pos)
     {
-        _wb.setSheetOrder(sheetname,pos);
+        getModifiableXSSFWorkbook().setSheetOrder(sheetname,pos);
     }
 
     /**
@@ -353,7 +284,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setSelectedTab(int index)
     {
-        _wb.setSelectedTab(index);
+        getModifiableXSSFWorkbook().setSelectedTab(index);
     }
 
     /**
@@ -364,7 +295,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setSheetName(int sheet, String name)
     {
-        _wb.setSheetName(sheet,name);
+        getModifiableXSSFWorkbook().setSheetName(sheet,name);
     }
 
     /**
@@ -375,6 +306,7 @@ public class StreamWorkbook implements Workbook
      */
     public String getSheetName(int sheet)
     {
+        if(_leanSheets!=null) return _leanSheets.get(sheet)._sheetName;
         return _wb.getSheetName(sheet);
     }
 
@@ -386,6 +318,12 @@ public class StreamWorkbook implements Workbook
      */
     public int getSheetIndex(String name)
     {
+        if(_leanSheets!=null)
+        {
+            for(int i=0;i<_leanSheets.size();i++)
+                if(_leanSheets.get(i)._sheetName.equalsIgnoreCase(name)) return i;
+            return -1;
+        }
         return _wb.getSheetIndex(name);
     }
 
@@ -397,6 +335,7 @@ public class StreamWorkbook implements Workbook
      */
     public int getSheetIndex(Sheet sheet)
     {
+        if(_leanSheets!=null) return _leanSheets.indexOf(sheet);
         return _wb.getSheetIndex(getXSSFSheet((StreamSheet)sheet));
     }
 
@@ -408,8 +347,36 @@ public class StreamWorkbook implements Workbook
      */
     public Sheet createSheet()
     {
+        checkNotStamped();
+        if(_leanSheets!=null)
+            return createLeanSheet("Sheet"+_leanSheets.size());
         return createAndRegisterSXSSFSheet(_wb.createSheet());
     }
+    private void checkNotStamped()
+    {
+        if(_template!=null)
+            throw new IllegalStateException("The sheets of a workbook stamped from a template can't be changed");
+    }
+
+    /**
+     * Stamped workbooks share the model of their template between threads and
+     * write its pre-serialized styles and sheet layout, so they can't change them.
+     */
+    void checkLayoutNotStamped()
+    {
+        if(_template!=null)
+            throw new IllegalStateException("The styles and layout of a workbook stamped from a template can't be changed");
+    }
+
+    /**
+     * @return the XSSF model of this workbook for a change of its styles or layout
+     * @throws IllegalStateException if the workbook was stamped from a template
+     */
+    XSSFWorkbook getModifiableXSSFWorkbook()
+    {
+        checkLayoutNotStamped();
+        return getXSSFWorkbook();
+    }
     StreamSheet createAndRegisterSXSSFSheet(XSSFSheet xSheet)
     {
         StreamSheet sxSheet=null;
@@ -435,9 +402,31 @@ public class StreamWorkbook implements Workbook
      */
     public Sheet createSheet(String sheetname)
     {
+        checkNotStamped();
+        if(_leanSheets!=null)
+            return createLeanSheet(sheetname);
         return createAndRegisterSXSSFSheet(_wb.createSheet(sheetname));
     }
 
+    private StreamSheet createLeanSheet(String sheetname)
+    {
+        // same checks as XSSFWorkbook.createSheet(String)
+        WorkbookUtil.validateSheetName(sheetname);
+        if(getSheetIndex(sheetname)>=0)
+            throw new IllegalArgumentException("The workbook already contains a sheet of this name");
+        StreamSheet sxSheet;
+        try
+        {
+            sxSheet=new StreamSheet(this,sheetname);
+        }
+        catch (IOException ioe)
+        {
+            throw new RuntimeException(ioe);
+        }
+        _leanSheets.add(sxSheet);
+        return sxSheet;
+    }
+
     /**
      * Create an Sheet from an existing sheet in the Workbook.
      *
@@ -456,6 +445,7 @@ public class StreamWorkbook implements Workbook
      */
     public int getNumberOfSheets()
     {
+        if(_leanSheets!=null) return _leanSheets.size();
         return _wb.getNumberOfSheets();
     }
 
@@ -467,6 +457,7 @@ public class StreamWorkbook implements Workbook
      */
     public Sheet getSheetAt(int index)
     {
+        if(_leanSheets!=null) return _leanSheets.get(index);
         return getSXSSFSheet(_wb.getSheetAt(index));
     }
 
@@ -478,6 +469,11 @@ public class StreamWorkbook implements Workbook
      */
     public Sheet getSheet(String name)
     {
+        if(_leanSheets!=null)
+        {
+            int index=getSheetIndex(name);
+            return index<0?null:_leanSheets.get(index);
+        }
         return getSXSSFSheet(_wb.getSheet(name));
     }
 
@@ -488,6 +484,12 @@ public class StreamWorkbook implements Workbook
      */
     public void removeSheetAt(int index)
     {
+        checkNotStamped();
+        if(_leanSheets!=null)
+        {
+            _leanSheets.remove(index);
+            return;
+        }
         XSSFSheet xSheet=_wb.getSheetAt(index);
         _wb.removeSheetAt(index);
         deregisterSheetMapping(xSheet);
@@ -523,7 +525,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setRepeatingRowsAndColumns(int sheetIndex, int startColumn, int endColumn, int startRow, int endRow)
     {
-        _wb.setRepeatingRowsAndColumns(sheetIndex,startColumn,endColumn,startRow,endRow);
+        getModifiableXSSFWorkbook().setRepeatingRowsAndColumns(sheetIndex,startColumn,endColumn,startRow,endRow);
     }
 
     /**
@@ -533,7 +535,7 @@ public class StreamWorkbook implements Workbook
      */
     public Font createFont()
     {
-        return _wb.createFont();
+        return getModifiableXSSFWorkbook().createFont();
     }
 
     /**
@@ -543,7 +545,7 @@ public class StreamWorkbook implements Workbook
      */
     public Font findFont(short boldWeight, short color, short fontHeight, String name, boolean italic, boolean strikeout, short typeOffset, byte underline)
     {
-        return _wb.findFont(boldWeight, color, fontHeight, name, italic, strikeout, typeOffset, underline);
+        return getXSSFWorkbook().findFont(boldWeight, color, fontHeight, name, italic, strikeout, typeOffset, underline);
     }
 
 
@@ -554,7 +556,7 @@ public class StreamWorkbook implements Workbook
      */
     public short getNumberOfFonts()
     {
-        return _wb.getNumberOfFonts();
+        return getXSSFWorkbook().getNumberOfFonts();
     }
 
     /**
@@ -565,7 +567,7 @@ public class StreamWorkbook implements Workbook
      */
     public Font getFontAt(short idx)
     {
-        return _wb.getFontAt(idx);
+        return getXSSFWorkbook().getFontAt(idx);
     }
 
     /**
@@ -575,7 +577,72 @@ public class StreamWorkbook implements Workbook
      */
     public CellStyle createCellStyle()
     {
-        return _wb.createCellStyle();
+        return getModifiableXSSFWorkbook().createCellStyle();
+    }
+
+    /**
+     * Returns a style with the given properties, creating it only if the workbook
+     * has no style with identical properties yet.
+     * <p>
+     * The properties are set on a style that is not part of the workbook; only if
+     * no identical style is found it is added to the style table. Use this instead
+     * of {@link #createCellStyle()} where styles are created per row or per cell,
+     * which otherwise quickly exceeds the limit of 64000 styles. Returned styles may
+     * be shared, don't change them afterwards.
+     * </p>
+     * <pre>
+     * CellStyle amount = wb.createCellStyle(s -&gt; s.setDataFormat(format.getFormat("#,##0.00")));
+     * </pre>
+     *
+     * @param properties sets the properties of the style
+     * @return the existing or the new style
+     * @throws IllegalStateException if the workbook was stamped from a template that has no such style
+     */
+    public CellStyle createCellStyle(Consumer<? super CellStyle> properties)
+    {
+        return createCellStyle((short)0,properties);
+    }
+
+    /**
+     * Like {@link #createCellStyle(Consumer)}, but the properties are set on a copy
+     * of the style at <code>base</code>.
+     */
+    CellStyle createCellStyle(short base, Consumer<? super CellStyle> properties)
+    {
+        StylesTable styles=getXSSFWorkbook().getStylesSource();
+        if(_scratchStyles==null) _scratchStyles=new ScratchStyles(styles);
+        XSSFCellStyle scratch=_scratchStyles.createCandidate(base);
+        properties.accept(scratch);
+        String key=formatKey(scratch.getCoreXf());
+        if(_stylesByFormat==null) indexCellStyles();
+        Short index=_stylesByFormat.get(key);
+        if(index!=null&&!key.equals(formatKey(styles.getCellXfAt(index))))
+        {
+            // the style was changed since it was indexed
+            indexCellStyles();
+            index=_stylesByFormat.get(key);
+        }
+        if(index!=null) return getCellStyleAt(index);
+        XSSFWorkbook wb=getModifiableXSSFWorkbook();
+        XSSFCellStyle style=wb.createCellStyle();
+        style.getCoreXf().set(scratch.getCoreXf());
+        _scratchStyles.addTo(style.getCoreXf(),wb.getStylesSource());
+        _stylesByFormat.put(formatKey(style.getCoreXf()),style.getIndex());
+        return style;
+    }
+
+    private void indexCellStyles()
+    {
+        StylesTable styles=getXSSFWorkbook().getStylesSource();
+        _stylesByFormat=new HashMap<String,Short>();
+        // backwards so that the first of identical styles is kept
+        for(int i=styles.getNumCellStyles()-1;i>=0;i--)
+            _stylesByFormat.put(formatKey(styles.getCellXfAt(i)),(short)i);
+    }
+
+    private static String formatKey(CTXf xf)
+    {
+        return xf.xmlText();
     }
 
     /**
@@ -585,7 +652,7 @@ public class StreamWorkbook implements Workbook
      */
     public short getNumCellStyles()
     {
-        return _wb.getNumCellStyles();
+        return getXSSFWorkbook().getNumCellStyles();
     }
 
     /**
@@ -596,11 +663,237 @@ public class StreamWorkbook implements Workbook
      */
     public CellStyle getCellStyleAt(short idx)
     {
-        return _wb.getCellStyleAt(idx);
+        return getXSSFWorkbook().getCellStyleAt(idx);
     }
 
+    /**
+     * Sets the source of the row XML of every sheet. Replaces a sheet writer set
+     * with {@link #setSheetWriter(SheetWriter)}.
+     */
     public void setStreamSource(Function<StreamSheet, Stream<String>> source) {
         this.streamSource = source;
+        if (source != null) _sheetWriter = null;
+    }
+
+    Function<StreamSheet, Stream<String>> getStreamSource() {
+        return streamSource;
+    }
+
+    /**
+     * Sets the writer that pushes the rows of every sheet while the workbook is written,
+     * see {@link SheetWriter}. Replaces a stream source set with {@link #setStreamSource(Function)}.
+     *
+     * @param sheetWriter the sheet writer
+     */
+    public void setSheetWriter(SheetWriter sheetWriter) {
+        _sheetWriter = sheetWriter;
+        if (sheetWriter != null) this.streamSource = null;
+    }
+
+    /**
+     * @return the writer pushing the rows of every sheet, <code>null</code> if rows are
+     *         supplied by a stream source
+     */
+    public SheetWriter getSheetWriter() {
+        return _sheetWriter;
+    }
+
+    /**
+     * Whether rows flushed while the workbook is written are encoded straight into the output.
+     * <p>
+     * In this mode {@link StreamSheet#flushRows()} called from the stream source encodes
+     * the rows as UTF-8 directly into the worksheet entry and returns an empty string,
+     * so no intermediate <code>String</code> is created per flush. Strings returned by
+     * the stream source are still written in order. Outside of {@link #write(OutputStream)}
+     * the rows are returned as XML as usual.
+     * </p>
+     *
+     * @param value <code>true</code> to encode flushed rows directly into the output
+     */
+    public void setDirectRowOutput(boolean value) {
+        _directRowOutput = value;
+    }
+
+    /**
+     * @return whether rows flushed during {@link #write(OutputStream)} are encoded straight into the output
+     */
+    public boolean isDirectRowOutput() {
+        return _directRowOutput;
+    }
+
+    /**
+     * Whether the optional <code>r</code> attribute is omitted on contiguous rows and cells.
+     * <p>
+     * SpreadsheetML allows to leave out the reference of a row that directly follows
+     * the previous row and of a cell that directly follows the previous cell in its row.
+     * Excel reads such files fine and they are smaller and faster to write. Note that
+     * some readers, e.g. XSSFWorkbook of POI 3.9, require the attribute.
+     * </p>
+     *
+     * @param value <code>true</code> to omit references on contiguous rows and cells
+     */
+    public void setCompactCellReferences(boolean value) {
+        _compactCellReferences = value;
+        for (int i = 0; i < getNumberOfSheets(); i++) {
+            ((StreamSheet) getSheetAt(i)).getSheetDataWriter().setCompactReferences(value);
+        }
+    }
+
+    /**
+     * @return whether references are omitted on contiguous rows and cells
+     */
+    public boolean isCompactCellReferences() {
+        return _compactCellReferences;
+    }
+
+    /**
+     * Sets how the entries of the package are compressed when the workbook is written.
+     * <p>
+     * The default is {@link CompressionProfile#DEFAULT}, the level used by
+     * <code>ZipOutputStream</code>. Large sheets that are written to a fast local
+     * target are usually quicker with {@link CompressionProfile#FASTEST}.
+     * </p>
+     *
+     * @param profile the compression profile, not <code>null</code>
+     */
+    public void setCompressionProfile(CompressionProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("Compression profile must not be null");
+        }
+        _compressionProfile = profile;
+    }
+
+    /**
+     * @return how the entries of the package are compressed
+     */
+    public CompressionProfile getCompressionProfile() {
+        return _compressionProfile;
+    }
+
+    /**
+     * Sets the deflate throughput the {@link CompressionProfile#ADAPTIVE} profile aims at,
+     * the time spent writing the compressed data to the output is not counted.
+     *
+     * @param megabytesPerSecond uncompressed megabytes per second, must be positive
+     */
+    public void setAdaptiveCompressionTarget(double megabytesPerSecond) {
+        if (!(megabytesPerSecond > 0)) {
+            throw new IllegalArgumentException("Adaptive compression target must be positive: " + megabytesPerSecond);
+        }
+        _adaptiveCompressionTarget = megabytesPerSecond;
+    }
+
+    /**
+     * @return the throughput in MB/s the {@link CompressionProfile#ADAPTIVE} profile aims at
+     */
+    public double getAdaptiveCompressionTarget() {
+        return _adaptiveCompressionTarget;
+    }
+
+    /**
+     * Sets how string cells are written.
+     * <p>
+     * The default, {@link SharedStringsMode#INLINE}, writes every string into its cell.
+     * With {@link SharedStringsMode#SHARED} a string is written once into the shared
+     * strings part of the package and cells refer to it, which makes columns of
+     * repeated values such as a status or a country much smaller and faster to open.
+     * {@link SharedStringsMode#ADAPTIVE} shares the strings only of the columns that
+     * repeat them. The shared strings are held in memory until all sheets are written,
+     * up to {@link #setSharedStringsMemoryLimit(long)}.
+     * </p>
+     *
+     * @param mode the shared strings mode, not <code>null</code>
+     */
+    public void setSharedStringsMode(SharedStringsMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Shared strings mode must not be null");
+        }
+        _sharedStringsMode = mode;
+    }
+
+    /**
+     * @return how string cells are written
+     */
+    public SharedStringsMode getSharedStringsMode() {
+        return _sharedStringsMode;
+    }
+
+    /**
+     * Limits the memory taken by the shared strings while the workbook is written.
+     * Once the estimated size of the shared strings reaches the limit, strings that
+     * are not shared yet are written inline.
+     *
+     * @param bytes the estimated number of bytes, must be positive
+     */
+    public void setSharedStringsMemoryLimit(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Shared strings memory limit must be positive: " + bytes);
+        }
+        _sharedStringsMemoryLimit = bytes;
+    }
+
+    /**
+     * @return the estimated number of bytes the shared strings may take
+     */
+    public long getSharedStringsMemoryLimit() {
+        return _sharedStringsMemoryLimit;
+    }
+
+    /**
+     * Sets the executor that compresses worksheets in parallel.
+     * <p>
+     * With an executor the XML of a worksheet is cut into blocks of 128KB that are
+     * deflated concurrently and joined into a single deflate stream, so that writing
+     * a large sheet scales with the threads of the executor rather than being bound
+     * to the deflate speed of the writing thread. The output is slightly larger as
+     * every block ends on a byte boundary. The executor is not shut down by the workbook.
+     * </p>
+     *
+     * @param executor the executor to deflate blocks on, <code>null</code> (the default)
+     *                 to compress on the writing thread
+     */
+    public void setCompressionExecutor(Executor executor) {
+        _compressionExecutor = executor;
+    }
+
+    /**
+     * @return the executor worksheets are compressed on, or <code>null</code> if they are
+     *         compressed on the writing thread
+     */
+    public Executor getCompressionExecutor() {
+        return _compressionExecutor;
+    }
+
+    /**
+     * Sets the executor that renders and compresses the sheets of the workbook concurrently.
+     * <p>
+     * With an executor the stream source of every sheet is applied on a task of its own,
+     * which writes the rows of the sheet deflated into a memory buffer. The package is put
+     * together from these buffers in sheet order, so a workbook with many sheets is written
+     * with as many threads as the executor provides, at the cost of holding the compressed
+     * sheets in memory until they are written. Workbooks with a single sheet are written
+     * as usual.
+     * </p>
+     * <p>
+     * The stream source is called from the threads of the executor, concurrently for
+     * different sheets, and must allow that. Any executor works, e.g. a fixed thread pool
+     * or, on Java 21, an executor starting a virtual thread per task. The executor is
+     * not shut down by the workbook.
+     * </p>
+     *
+     * @param executor the executor to write sheets on, <code>null</code> (the default)
+     *                 to write the sheets one after another on the writing thread
+     */
+    public void setSheetExecutor(Executor executor) {
+        _sheetExecutor = executor;
+    }
+
+    /**
+     * @return the executor sheets are written on, or <code>null</code> if they are
+     *         written one after another
+     */
+    public Executor getSheetExecutor() {
+        return _sheetExecutor;
     }
     /**
      * Write out this workbook to an Outputstream.
@@ -610,39 +903,37 @@ public class StreamWorkbook implements Workbook
      */
     public void write(OutputStream stream) throws IOException
     {
-        if (this.streamSource ==null) {
+        if (this.streamSource ==null && _sheetWriter == null) {
             throw new IllegalArgumentException("StreamSource is not defined");
         }
 
-        //Save the template
-        File tmplFile = File.createTempFile("poi-sxssf-template", ".xlsx");
-        try
-        {
-            FileOutputStream os = new FileOutputStream(tmplFile);
-            try
-            {
-                _wb.write(os);
-            }
-            finally
-            {
-                os.close();
-            }
+        StreamTemplate template = _template != null ? _template
+                : _wb == null ? StreamTemplate.compileLean(this) : compileTemplate();
+        template.write(this, stream);
+    }
 
-            //Substitute the template entries with the generated sheet data files
-            injectData(tmplFile, stream, this.streamSource);
-        }
-        finally
-        {
-            tmplFile.delete();
-        }
+    /**
+     * Serializes the current state of this workbook into a reusable template.
+     * <p>
+     * The template holds the pre-serialized package parts of this workbook. Use
+     * {@link StreamTemplate#createWorkbook()} to create workbooks of the same shape
+     * that only stream their rows when written.
+     * </p>
+     *
+     * @return the compiled template
+     * @exception IOException if the template can't be serialized.
+     */
+    public StreamTemplate compileTemplate() throws IOException
+    {
+        return StreamTemplate.compile(this);
     }
-    
+
     /**
      * @return the total number of defined names in this workbook
      */
     public int getNumberOfNames()
     {
-        return _wb.getNumberOfNames();
+        return getXSSFWorkbook().getNumberOfNames();
     }
 
     /**
@@ -651,7 +942,7 @@ public class StreamWorkbook implements Workbook
      */
     public Name getName(String name)
     {
-        return _wb.getName(name);
+        return getXSSFWorkbook().getName(name);
     }
     /**
      * @param nameIndex position of the named range (0-based)
@@ -660,7 +951,7 @@ public class StreamWorkbook implements Workbook
      */
     public Name getNameAt(int nameIndex)
     {
-        return _wb.getNameAt(nameIndex);
+        return getXSSFWorkbook().getNameAt(nameIndex);
     }
 
     /**
@@ -670,7 +961,7 @@ public class StreamWorkbook implements Workbook
      */
     public Name createName()
     {
-        return _wb.createName();
+        return getModifiableXSSFWorkbook().createName();
     }
 
     /**
@@ -683,7 +974,7 @@ public class StreamWorkbook implements Workbook
      */
     public int getNameIndex(String name)
     {
-        return _wb.getNameIndex(name);
+        return getXSSFWorkbook().getNameIndex(name);
     }
 
     /**
@@ -693,7 +984,7 @@ public class StreamWorkbook implements Workbook
      */
     public void removeName(int index)
     {
-        _wb.removeName(index);
+        getModifiableXSSFWorkbook().removeName(index);
     }
 
     /**
@@ -703,7 +994,7 @@ public class StreamWorkbook implements Workbook
      */
     public void removeName(String name)
     {
-        _wb.removeName(name);
+        getModifiableXSSFWorkbook().removeName(name);
     }
 
      /**
@@ -715,7 +1006,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setPrintArea(int sheetIndex, String reference)
     {
-        _wb.setPrintArea(sheetIndex,reference);
+        getModifiableXSSFWorkbook().setPrintArea(sheetIndex,reference);
     }
 
     /**
@@ -729,7 +1020,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setPrintArea(int sheetIndex, int startColumn, int endColumn, int startRow, int endRow)
     {
-        _wb.setPrintArea(sheetIndex, startColumn, endColumn, startRow, endRow);
+        getModifiableXSSFWorkbook().setPrintArea(sheetIndex, startColumn, endColumn, startRow, endRow);
     }
 
     /**
@@ -741,7 +1032,7 @@ public class StreamWorkbook implements Workbook
      */
     public String getPrintArea(int sheetIndex)
     {
-        return _wb.getPrintArea(sheetIndex);
+        return getXSSFWorkbook().getPrintArea(sheetIndex);
     }
 
     /**
@@ -751,7 +1042,7 @@ public class StreamWorkbook implements Workbook
      */
     public void removePrintArea(int sheetIndex)
     {
-        _wb.removePrintArea(sheetIndex);
+        getModifiableXSSFWorkbook().removePrintArea(sheetIndex);
     }
 
     /**
@@ -764,7 +1055,7 @@ public class StreamWorkbook implements Workbook
      */
     public MissingCellPolicy getMissingCellPolicy()
     {
-        return _wb.getMissingCellPolicy();
+        return _missingCellPolicy;
     }
 
     /**
@@ -777,17 +1068,53 @@ public class StreamWorkbook implements Workbook
      */
     public void setMissingCellPolicy(MissingCellPolicy missingCellPolicy)
     {
-        _wb.setMissingCellPolicy(missingCellPolicy);
+        _missingCellPolicy=missingCellPolicy;
+        if(_wb!=null&&_template==null) _wb.setMissingCellPolicy(missingCellPolicy);
     }
 
     /**
      * Returns the instance of DataFormat for this workbook.
+     * <p>
+     * The data format of a workbook stamped from a template only finds the formats
+     * the template has, see {@link #findDataFormat(String)}.
+     * </p>
      *
      * @return the DataFormat object
      */
     public DataFormat createDataFormat()
     {
-        return _wb.createDataFormat();
+        if(_template==null) return getXSSFWorkbook().createDataFormat();
+        final DataFormat formats=_wb.createDataFormat();
+        return new DataFormat()
+        {
+            public short getFormat(String format)
+            {
+                short index=findDataFormat(format);
+                if(index<0) checkLayoutNotStamped();
+                return index;
+            }
+            public String getFormat(short index)
+            {
+                return formats.getFormat(index);
+            }
+        };
+    }
+
+    /**
+     * Looks up a built-in or an existing custom data format without adding it.
+     *
+     * @param format the format, e.g. <code>"#,##0.00"</code>
+     * @return the index of the format, -1 if the workbook doesn't have it
+     */
+    short findDataFormat(String format)
+    {
+        int index=BuiltinFormats.getBuiltinFormat(format);
+        if(index>=0) return (short)index;
+        for(Map.Entry<Integer,String> entry : getXSSFWorkbook().getStylesSource().getNumberFormats().entrySet())
+        {
+            if(entry.getValue().equals(format)) return entry.getKey().shortValue();
+        }
+        return -1;
     }
 
     /**
@@ -806,7 +1133,7 @@ public class StreamWorkbook implements Workbook
      */
     public int addPicture(byte[] pictureData, int format)
     {
-        return _wb.addPicture(pictureData,format);
+        return getModifiableXSSFWorkbook().addPicture(pictureData,format);
     }
 
     /**
@@ -816,7 +1143,7 @@ public class StreamWorkbook implements Workbook
      */
     public List<? extends PictureData> getAllPictures()
     {
-        return _wb.getAllPictures();
+        return getXSSFWorkbook().getAllPictures();
     }
 
     /**
@@ -825,7 +1152,7 @@ public class StreamWorkbook implements Workbook
      */
     public CreationHelper getCreationHelper()
     {
-        return _wb.getCreationHelper();
+        return getXSSFWorkbook().getCreationHelper();
     }
 
     /**
@@ -833,7 +1160,7 @@ public class StreamWorkbook implements Workbook
      */
     public boolean isHidden()
     {
-        return _wb.isHidden();
+        return getXSSFWorkbook().isHidden();
     }
 
     /**
@@ -841,7 +1168,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setHidden(boolean hiddenFlag)
     {
-        _wb.setHidden(hiddenFlag);
+        getModifiableXSSFWorkbook().setHidden(hiddenFlag);
     }
 
     /**
@@ -855,7 +1182,7 @@ public class StreamWorkbook implements Workbook
      */
     public boolean isSheetHidden(int sheetIx)
     {
-        return _wb.isSheetHidden(sheetIx);
+        return getXSSFWorkbook().isSheetHidden(sheetIx);
     }
 
     /**
@@ -869,7 +1196,7 @@ public class StreamWorkbook implements Workbook
      */
     public boolean isSheetVeryHidden(int sheetIx)
     {
-        return _wb.isSheetVeryHidden(sheetIx);
+        return getXSSFWorkbook().isSheetVeryHidden(sheetIx);
     }
 
     /**
@@ -880,7 +1207,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setSheetHidden(int sheetIx, boolean hidden)
     {
-        _wb.setSheetHidden(sheetIx,hidden);
+        getModifiableXSSFWorkbook().setSheetHidden(sheetIx,hidden);
     }
 
     /**
@@ -900,7 +1227,7 @@ public class StreamWorkbook implements Workbook
      */
     public void setSheetHidden(int sheetIx, int hidden)
     {
-        _wb.setSheetHidden(sheetIx,hidden);
+        getModifiableXSSFWorkbook().setSheetHidden(sheetIx,hidden);
     }
     /**
      * Register a new toolpack in this workbook.
@@ -909,7 +1236,7 @@ public class StreamWorkbook implements Workbook
      */
     public void addToolPack(UDFFinder toopack)
     {
-        _wb.addToolPack(toopack);
+        getModifiableXSSFWorkbook().addToolPack(toopack);
     }
 
     /**
@@ -925,14 +1252,14 @@ public class StreamWorkbook implements Workbook
      * @since 3.8
      */
     public void setForceFormulaRecalculation(boolean value){
-        _wb.setForceFormulaRecalculation(value);
+        getModifiableXSSFWorkbook().setForceFormulaRecalculation(value);
     }
 
     /**
      * Whether Excel will be asked to recalculate all formulas when the  workbook is opened.
      */
     public boolean getForceFormulaRecalculation(){
-        return _wb.getForceFormulaRecalculation();
+        return getXSSFWorkbook().getForceFormulaRecalculation();
     }
 
 //end of interface implementation
@@ -0,0 +1,249 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that XML fragments are encoded into as UTF-8.
+ * <p>
+ * The buffer keeps its capacity when it is drained, so once it has grown to
+ * the size of a typical flush, encoding rows does not allocate.
+ * </p>
+ */
+class Utf8Buffer {
+    /** integers below this magnitude are exactly representable as double */
+    private static final double MAX_EXACT_INTEGER = 9007199254740992d; // 2^53
+    private static final double[] POWERS_OF_TEN = new double[18];
+    static {
+        double p = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = p;
+            p *= 10;
+        }
+    }
+
+    private byte[] _buf;
+    private int _count;
+
+    Utf8Buffer(int capacity) {
+        _buf = new byte[capacity];
+    }
+
+    int size() {
+        return _count;
+    }
+
+    void reset() {
+        _count = 0;
+    }
+
+    void write(int b) {
+        ensureCapacity(1);
+        _buf[_count++] = (byte) b;
+    }
+
+    void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, _buf, _count, len);
+        _count += len;
+    }
+
+    /**
+     * Writes a string that is known to contain only ASCII characters,
+     * typically markup.
+     */
+    void writeAscii(String s) {
+        writeAscii(s, 0, s.length());
+    }
+
+    /**
+     * Copies the ASCII characters <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive) with a single bulk copy of their low bytes.
+     */
+    @SuppressWarnings("deprecation")
+    void writeAscii(String s, int from, int to) {
+        int len = to - from;
+        ensureCapacity(len);
+        s.getBytes(from, to, _buf, _count);
+        _count += len;
+    }
+
+    void writeInt(int v) {
+        writeLong(v);
+    }
+
+    void writeLong(long v) {
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) {
+                writeAscii("-9223372036854775808");
+                return;
+            }
+            write('-');
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) digits++;
+        ensureCapacity(digits);
+        int pos = _count + digits;
+        _count = pos;
+        do {
+            _buf[--pos] = (byte) ('0' + (int) (v % 10));
+            v /= 10;
+        } while (v != 0);
+    }
+
+    /**
+     * Writes the shortest decimal representation of the value that parses back
+     * to the same <code>double</code>.
+     * <p>
+     * Whole numbers are written without fraction (<code>42</code> rather than
+     * <code>42.0</code>). Values with a short decimal fraction, which covers most
+     * amounts and rates, are written from their scaled integer digits; for those
+     * <code>m / 10^k</code> is computed from two exactly representable operands
+     * and therefore rounds to the same double as parsing the digits does. All
+     * other values fall back to {@link Double#toString(double)}.
+     * </p>
+     */
+    void writeDouble(double v) {
+        if (v > -MAX_EXACT_INTEGER && v < MAX_EXACT_INTEGER) {
+            long l = (long) v;
+            if (l == v) {
+                writeLong(l);
+                return;
+            }
+            double a = Math.abs(v);
+            // below 10^-3 the scientific notation is shorter
+            if (a >= 1e-3) {
+                for (int k = 1; k < POWERS_OF_TEN.length; k++) {
+                    double scaled = a * POWERS_OF_TEN[k];
+                    if (scaled >= MAX_EXACT_INTEGER) break;
+                    long m = Math.round(scaled);
+                    if (m / POWERS_OF_TEN[k] == a) {
+                        writeDecimal(v < 0, m, k);
+                        return;
+                    }
+                }
+            }
+        }
+        writeAscii(Double.toString(v));
+    }
+
+    /**
+     * Writes <code>m / 10^scale</code> with <code>scale</code> fraction digits.
+     */
+    private void writeDecimal(boolean negative, long m, int scale) {
+        int digits = 1;
+        for (long t = m; t >= 10; t /= 10) digits++;
+        int intDigits = Math.max(digits - scale, 1);
+        ensureCapacity(2 + intDigits + scale);
+        byte[] buf = _buf;
+        int pos = _count;
+        if (negative) buf[pos++] = '-';
+        int end = pos + intDigits + 1 + scale;
+        int p = end;
+        for (int i = 0; i < scale; i++) {
+            buf[--p] = (byte) ('0' + (int) (m % 10));
+            m /= 10;
+        }
+        buf[--p] = '.';
+        do {
+            buf[--p] = (byte) ('0' + (int) (m % 10));
+            m /= 10;
+        } while (p > pos);
+        _count = end;
+    }
+
+    /**
+     * Encodes the string as UTF-8. Unpaired surrogates are replaced by '?'.
+     */
+    void writeUtf8(String s) {
+        writeUtf8(s, 0, s.length());
+    }
+
+    void writeUtf8(String s, int from, int to) {
+        // worst case is three bytes per char
+        ensureCapacity((to - from) * 3);
+        byte[] buf = _buf;
+        int pos = _count;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    buf[pos++] = '?';
+                }
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        _count = pos;
+    }
+
+    /**
+     * Writes the content to the stream and empties the buffer.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (_count > 0) {
+            out.write(_buf, 0, _count);
+            _count = 0;
+        }
+    }
+
+    /**
+     * @return a copy of the content
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(_buf, _count);
+    }
+
+    /**
+     * @return the content decoded as a string
+     */
+    public String toString() {
+        return new String(_buf, 0, _count, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = _count + extra;
+        if (required > _buf.length) {
+            byte[] newBuf = new byte[Math.max(required, _buf.length * 2)];
+            System.arraycopy(_buf, 0, newBuf, 0, _count);
+            _buf = newBuf;
+        }
+    }
+}
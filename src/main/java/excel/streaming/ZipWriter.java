@@ -0,0 +1,627 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+
+package excel.streaming;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal zip archive writer for the workbook package.
+ * <p>
+ * Unlike <code>ZipOutputStream</code> it takes its deflaters from the
+ * {@link DeflaterPool} and applies a {@link CompressionProfile}. Entries of
+ * unknown size are followed by a data descriptor, Zip64 records are written
+ * when sizes, offsets or the number of entries require them.
+ * </p>
+ */
+class ZipWriter implements Closeable {
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EXT_SIG = 0x08074b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+
+    /** amount of input after which the adaptive profile re-evaluates the level */
+    private static final int ADAPTIVE_SAMPLE_SIZE = 512 * 1024;
+    /** uncompressed size of the blocks deflated concurrently */
+    static final int PARALLEL_BLOCK_SIZE = 128 * 1024;
+    /** size of the deflate window, the tail of the previous block primes the next one */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /** blocks compressed or queued at a time, bounds the memory held by one entry */
+    private static final int MAX_BLOCKS_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors() + 2;
+
+    private final OutputStream _out;
+    private final CompressionProfile _profile;
+    private final double _adaptiveTarget;
+    private final int _dosTime;
+    private final List<Entry> _entries = new ArrayList<Entry>();
+    private long _written;
+    private final Executor _executor;
+    private EntryStream _current;
+    private boolean _finished;
+
+    /**
+     * @param out            the stream the archive is written to
+     * @param profile        how entries are compressed
+     * @param adaptiveTarget the throughput in MB/s aimed at by {@link CompressionProfile#ADAPTIVE}
+     * @param executor       runs the block compression of {@link #beginEntry(String)} entries,
+     *                       <code>null</code> to deflate on the writing thread
+     */
+    ZipWriter(OutputStream out, CompressionProfile profile, double adaptiveTarget, Executor executor) {
+        _out = out;
+        _profile = profile;
+        _adaptiveTarget = adaptiveTarget;
+        _executor = executor;
+        _dosTime = toDosTime(System.currentTimeMillis());
+    }
+
+    CompressionProfile getProfile() {
+        return _profile;
+    }
+
+    /**
+     * Starts a deflated entry of unknown size. The returned stream must be closed
+     * before the next entry is started.
+     * <p>
+     * With an executor the entry is cut into blocks that are deflated concurrently,
+     * except for {@link CompressionProfile#STORED}, which has nothing to compress,
+     * and {@link CompressionProfile#ADAPTIVE}, which compresses the blocks with the
+     * default level as there is no single stream to sample.
+     * </p>
+     */
+    OutputStream beginEntry(String name) throws IOException {
+        checkNoOpenEntry();
+        Entry entry = new Entry(name, METHOD_DEFLATED, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(entry);
+        if (_executor != null && _profile != CompressionProfile.STORED) {
+            int level = _profile == CompressionProfile.ADAPTIVE ? Deflater.DEFAULT_COMPRESSION : _profile._level;
+            _current = new ParallelDeflatingEntryStream(entry, level);
+        } else {
+            _current = new DeflatingEntryStream(entry, _profile._level, _profile == CompressionProfile.ADAPTIVE);
+        }
+        return _current;
+    }
+
+    /**
+     * Writes an entry whose content is known in advance.
+     */
+    void writeEntry(String name, byte[] data) throws IOException {
+        if (_profile == CompressionProfile.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            writeRawEntry(name, METHOD_STORED, crc.getValue(), data.length, data, 0, data.length);
+            return;
+        }
+        // static parts are small, neither worth sampling nor splitting into blocks
+        checkNoOpenEntry();
+        Entry e = new Entry(name, METHOD_DEFLATED, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(e);
+        int level = _profile == CompressionProfile.ADAPTIVE ? Deflater.DEFAULT_COMPRESSION : _profile._level;
+        OutputStream entry = _current = new DeflatingEntryStream(e, level, false);
+        entry.write(data);
+        entry.close();
+    }
+
+    /**
+     * Writes an entry from data that is already compressed with the given method.
+     *
+     * @param crc  the CRC-32 of the uncompressed data
+     * @param size the size of the uncompressed data
+     */
+    void writeRawEntry(String name, int method, long crc, long size, byte[] data, int off, int len) throws IOException {
+        checkNoOpenEntry();
+        Entry entry = new Entry(name, method, 0);
+        entry._crc = crc;
+        entry._size = size;
+        entry._compressedSize = len;
+        writeLocalHeader(entry);
+        writeBytes(data, off, len);
+    }
+
+    /**
+     * Starts an entry that is deflated into memory instead of into the archive.
+     * Once the returned stream is closed, the entry is added with
+     * {@link #writeSpooledEntry(OutputStream)}.
+     * <p>
+     * Spooled entries don't touch the state of the writer, so several of them can
+     * be written concurrently on other threads while the archive is written.
+     * </p>
+     */
+    OutputStream spoolEntry(String name) {
+        Entry entry = new Entry(name, METHOD_DEFLATED, 0);
+        return new DeflatingEntryStream(entry, _profile._level, _profile == CompressionProfile.ADAPTIVE, new Utf8Buffer(64 * 1024));
+    }
+
+    /**
+     * Adds an entry that was deflated with {@link #spoolEntry(String)}.
+     */
+    void writeSpooledEntry(OutputStream spooled) throws IOException {
+        DeflatingEntryStream s = (DeflatingEntryStream) spooled;
+        if (s._spool == null || s._def != null) {
+            throw new IllegalStateException("Not a closed spooled entry");
+        }
+        checkNoOpenEntry();
+        Entry entry = s._entry;
+        writeLocalHeader(entry);
+        _written += s._spool.size();
+        s._spool.writeTo(_out);
+    }
+
+    /**
+     * Writes the central directory. No entries can be added afterwards.
+     */
+    void finish() throws IOException {
+        if (_finished) return;
+        checkNoOpenEntry();
+        _finished = true;
+        long cenOffset = _written;
+        for (Entry entry : _entries) {
+            writeCentralHeader(entry);
+        }
+        long cenSize = _written - cenOffset;
+        int count = _entries.size();
+        boolean zip64 = count >= 0xFFFF || cenOffset >= ZIP64_MAGIC || cenSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = _written;
+            ByteBuffer b = header(56 + 20);
+            b.putInt(ZIP64_END_SIG);
+            b.putLong(44);
+            b.putShort((short) 45);
+            b.putShort((short) 45);
+            b.putInt(0);
+            b.putInt(0);
+            b.putLong(count);
+            b.putLong(count);
+            b.putLong(cenSize);
+            b.putLong(cenOffset);
+            b.putInt(ZIP64_LOC_SIG);
+            b.putInt(0);
+            b.putLong(zip64EndOffset);
+            b.putInt(1);
+            writeHeader(b);
+        }
+        ByteBuffer b = header(22);
+        b.putInt(END_SIG);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putShort((short) Math.min(count, 0xFFFF));
+        b.putShort((short) Math.min(count, 0xFFFF));
+        b.putInt((int) Math.min(cenSize, ZIP64_MAGIC));
+        b.putInt((int) Math.min(cenOffset, ZIP64_MAGIC));
+        b.putShort((short) 0);
+        writeHeader(b);
+    }
+
+    /**
+     * Finishes the archive and closes the underlying stream.
+     */
+    public void close() throws IOException {
+        try {
+            if (_current == null) {
+                finish();
+            } else {
+                // aborted in the middle of an entry, just give the deflaters back
+                _current.abort();
+            }
+        } finally {
+            _out.close();
+        }
+    }
+
+    private void checkNoOpenEntry() {
+        if (_current != null) {
+            throw new IllegalStateException("The previous entry is still open");
+        }
+        if (_finished) {
+            throw new IllegalStateException("The archive is already finished");
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        entry._offset = _written;
+        _entries.add(entry);
+        ByteBuffer b = header(30 + entry._name.length);
+        b.putInt(LOC_SIG);
+        b.putShort((short) 20);
+        b.putShort((short) entry._flags);
+        b.putShort((short) entry._method);
+        b.putInt(_dosTime);
+        if ((entry._flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            b.putInt(0);
+            b.putInt(0);
+            b.putInt(0);
+        } else {
+            b.putInt((int) entry._crc);
+            b.putInt((int) entry._compressedSize);
+            b.putInt((int) entry._size);
+        }
+        b.putShort((short) entry._name.length);
+        b.putShort((short) 0);
+        b.put(entry._name);
+        writeHeader(b);
+    }
+
+    private void writeDataDescriptor(Entry entry) throws IOException {
+        boolean zip64 = entry._compressedSize >= ZIP64_MAGIC || entry._size >= ZIP64_MAGIC;
+        ByteBuffer b = header(zip64 ? 24 : 16);
+        b.putInt(EXT_SIG);
+        b.putInt((int) entry._crc);
+        if (zip64) {
+            b.putLong(entry._compressedSize);
+            b.putLong(entry._size);
+        } else {
+            b.putInt((int) entry._compressedSize);
+            b.putInt((int) entry._size);
+        }
+        writeHeader(b);
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        boolean sizeOverflow = entry._size >= ZIP64_MAGIC;
+        boolean compressedSizeOverflow = entry._compressedSize >= ZIP64_MAGIC;
+        boolean offsetOverflow = entry._offset >= ZIP64_MAGIC;
+        int zip64Fields = (sizeOverflow ? 1 : 0) + (compressedSizeOverflow ? 1 : 0) + (offsetOverflow ? 1 : 0);
+        int extraLength = zip64Fields == 0 ? 0 : 4 + 8 * zip64Fields;
+        int version = zip64Fields == 0 ? 20 : 45;
+        ByteBuffer b = header(46 + entry._name.length + extraLength);
+        b.putInt(CEN_SIG);
+        b.putShort((short) version);
+        b.putShort((short) version);
+        b.putShort((short) entry._flags);
+        b.putShort((short) entry._method);
+        b.putInt(_dosTime);
+        b.putInt((int) entry._crc);
+        b.putInt((int) (compressedSizeOverflow ? ZIP64_MAGIC : entry._compressedSize));
+        b.putInt((int) (sizeOverflow ? ZIP64_MAGIC : entry._size));
+        b.putShort((short) entry._name.length);
+        b.putShort((short) extraLength);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putInt(0);
+        b.putInt((int) (offsetOverflow ? ZIP64_MAGIC : entry._offset));
+        b.put(entry._name);
+        if (zip64Fields > 0) {
+            b.putShort((short) 1);
+            b.putShort((short) (8 * zip64Fields));
+            if (sizeOverflow) b.putLong(entry._size);
+            if (compressedSizeOverflow) b.putLong(entry._compressedSize);
+            if (offsetOverflow) b.putLong(entry._offset);
+        }
+        writeHeader(b);
+    }
+
+    private static ByteBuffer header(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeHeader(ByteBuffer b) throws IOException {
+        writeBytes(b.array(), 0, b.position());
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        _out.write(b, off, len);
+        _written += len;
+    }
+
+    private static int toDosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+
+    static class Entry {
+        final byte[] _name;
+        final int _method;
+        final int _flags;
+        long _crc;
+        long _size;
+        long _compressedSize;
+        long _offset;
+
+        Entry(String name, int method, int flags) {
+            _name = name.getBytes(StandardCharsets.UTF_8);
+            _method = method;
+            _flags = flags | FLAG_UTF8;
+        }
+    }
+
+    /**
+     * Output stream of an entry of unknown size.
+     */
+    private abstract class EntryStream extends OutputStream {
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * Releases the resources of an entry that is not going to be completed.
+         */
+        abstract void abort();
+    }
+
+    /**
+     * Deflates the data of an entry of unknown size into the archive.
+     */
+    private class DeflatingEntryStream extends EntryStream {
+        private final Entry _entry;
+        private final CRC32 _crc = new CRC32();
+        private final byte[] _buf = new byte[64 * 1024];
+        private final boolean _adaptive;
+        private Deflater _def;
+        private long _size;
+        private int _level;
+        private long _sampleInput;
+        private long _sampleNanos;
+        private long _sampleOutputStart;
+        /** receives the compressed data of a spooled entry, <code>null</code> if written to the archive */
+        private final Utf8Buffer _spool;
+
+        DeflatingEntryStream(Entry entry, int level, boolean adaptive) {
+            this(entry, level, adaptive, null);
+        }
+
+        DeflatingEntryStream(Entry entry, int level, boolean adaptive, Utf8Buffer spool) {
+            _entry = entry;
+            _level = level;
+            _adaptive = adaptive;
+            _spool = spool;
+            _def = DeflaterPool.acquire(level);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            if (_def == null) throw new IOException("Entry already closed");
+            _crc.update(b, off, len);
+            _size += len;
+            _def.setInput(b, off, len);
+            while (!_def.needsInput()) deflate();
+            if (_adaptive) {
+                _sampleInput += len;
+                if (_sampleInput >= ADAPTIVE_SAMPLE_SIZE) adaptLevel();
+            }
+        }
+
+        /**
+         * Moves the level one step towards the throughput target. Data that hardly
+         * compresses is always deflated with the fastest level.
+         */
+        private void adaptLevel() {
+            double seconds = Math.max(_sampleNanos, 1) / 1e9;
+            double megabytesPerSecond = _sampleInput / 1e6 / seconds;
+            long output = _def.getBytesWritten() - _sampleOutputStart;
+            double ratio = (double) _sampleInput / Math.max(output, 1);
+            int level = _level;
+            if (ratio < 1.1) {
+                level = Deflater.BEST_SPEED;
+            } else if (megabytesPerSecond < _adaptiveTarget && level > Deflater.BEST_SPEED) {
+                level--;
+            } else if (megabytesPerSecond > 2 * _adaptiveTarget && level < Deflater.BEST_COMPRESSION) {
+                level++;
+            }
+            if (level != _level) {
+                _level = level;
+                _def.setLevel(level);
+            }
+            _sampleInput = 0;
+            _sampleNanos = 0;
+            _sampleOutputStart = _def.getBytesWritten();
+        }
+
+        private void deflate() throws IOException {
+            // only the deflater is timed, the speed of the sink is not up to the level
+            long start = _adaptive ? System.nanoTime() : 0;
+            int n = _def.deflate(_buf, 0, _buf.length);
+            if (_adaptive) _sampleNanos += System.nanoTime() - start;
+            if (n == 0) return;
+            if (_spool != null) {
+                _spool.write(_buf, 0, n);
+            } else {
+                writeBytes(_buf, 0, n);
+            }
+        }
+
+        public void close() throws IOException {
+            if (_def == null) return;
+            _def.finish();
+            while (!_def.finished()) deflate();
+            _entry._crc = _crc.getValue();
+            _entry._size = _size;
+            _entry._compressedSize = _def.getBytesWritten();
+            abort();
+            if (_spool == null) writeDataDescriptor(_entry);
+        }
+
+        void abort() {
+            if (_def != null) {
+                DeflaterPool.release(_def, _level);
+                _def = null;
+                if (_spool == null) _current = null;
+            }
+        }
+    }
+
+    /**
+     * Deflates the data of an entry of unknown size in blocks, pigz style.
+     * <p>
+     * Every block is compressed by its own deflater, primed with the last 32KB of
+     * the previous block, and ends with a sync flush, so that the compressed
+     * blocks concatenate into a single deflate stream; the last block finishes
+     * it. The CRC-32 is computed on the writing thread while blocks are handed out.
+     * Compressed blocks are written in order, at most {@link #MAX_BLOCKS_IN_FLIGHT}
+     * are pending at any time.
+     * </p>
+     */
+    private class ParallelDeflatingEntryStream extends EntryStream {
+        private final Entry _entry;
+        private final int _level;
+        private final CRC32 _crc = new CRC32();
+        private final ArrayDeque<Future<byte[]>> _pending = new ArrayDeque<Future<byte[]>>();
+        private byte[] _block = new byte[PARALLEL_BLOCK_SIZE];
+        private int _blockLength;
+        private byte[] _previous;
+        private long _size;
+        private long _compressedSize;
+        private boolean _closed;
+
+        ParallelDeflatingEntryStream(Entry entry, int level) {
+            _entry = entry;
+            _level = level;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (_closed) throw new IOException("Entry already closed");
+            _crc.update(b, off, len);
+            _size += len;
+            while (len > 0) {
+                int n = Math.min(len, _block.length - _blockLength);
+                System.arraycopy(b, off, _block, _blockLength, n);
+                _blockLength += n;
+                off += n;
+                len -= n;
+                if (_blockLength == _block.length) submit(false);
+            }
+        }
+
+        private void submit(boolean last) throws IOException {
+            final byte[] block = _block;
+            final int length = _blockLength;
+            final byte[] dictionary = _previous;
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() {
+                    return deflateBlock(_level, dictionary, block, length, last);
+                }
+            });
+            if (last && _pending.isEmpty()) {
+                // a single block is not worth the hand-off
+                task.run();
+            } else {
+                if (_pending.size() >= MAX_BLOCKS_IN_FLIGHT) writeCompleted();
+                _executor.execute(task);
+            }
+            _pending.add(task);
+            _previous = block;
+            _block = new byte[PARALLEL_BLOCK_SIZE];
+            _blockLength = 0;
+        }
+
+        private void writeCompleted() throws IOException {
+            Future<byte[]> head = _pending.poll();
+            byte[] compressed;
+            try {
+                compressed = head.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while deflating " + new String(_entry._name, StandardCharsets.UTF_8));
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to deflate " + new String(_entry._name, StandardCharsets.UTF_8), e.getCause());
+            }
+            writeBytes(compressed, 0, compressed.length);
+            _compressedSize += compressed.length;
+        }
+
+        public void close() throws IOException {
+            if (_closed) return;
+            _closed = true;
+            try {
+                submit(true);
+                while (!_pending.isEmpty()) writeCompleted();
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            _entry._crc = _crc.getValue();
+            _entry._size = _size;
+            _entry._compressedSize = _compressedSize;
+            _current = null;
+            writeDataDescriptor(_entry);
+        }
+
+        void abort() {
+            _closed = true;
+            for (Future<byte[]> f : _pending) f.cancel(false);
+            _pending.clear();
+            _current = null;
+        }
+    }
+
+    /**
+     * Deflates one block of a parallel entry.
+     *
+     * @param dictionary the previous block, whose tail primes the deflater, or <code>null</code>
+     * @param last       whether the block ends the deflate stream
+     */
+    static byte[] deflateBlock(int level, byte[] dictionary, byte[] block, int length, boolean last) {
+        Deflater def = DeflaterPool.acquire(level);
+        try {
+            if (dictionary != null) {
+                def.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            def.setInput(block, 0, length);
+            // sync flush output is bounded by the input plus 5 bytes per 16K stored block
+            byte[] out = new byte[length + (length >> 12) + 64];
+            int count = 0;
+            if (last) {
+                def.finish();
+                while (!def.finished()) {
+                    if (count == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    count += def.deflate(out, count, out.length - count);
+                }
+            } else {
+                int n;
+                do {
+                    if (count == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    n = def.deflate(out, count, out.length - count, Deflater.SYNC_FLUSH);
+                    count += n;
+                } while (count == out.length);
+            }
+            return count == out.length ? out : Arrays.copyOf(out, count);
+        } finally {
+            DeflaterPool.release(def, level);
+        }
+    }
+}
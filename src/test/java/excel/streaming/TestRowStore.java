@@ -0,0 +1,141 @@
+package excel.streaming;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestRowStore {
+    @Test
+    public void appendsAndFlushesInOrder() {
+        RowStore store = new RowStore();
+        StreamRow[] rows = new StreamRow[100];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = row();
+            store.put(i + 5, rows[i]);
+            if (i >= 10) {
+                assertEquals(i - 5, store.firstRowNum());
+                assertSame(rows[i - 10], store.removeFirst());
+            }
+        }
+        assertEquals(10, store.size());
+        assertEquals(95, store.firstRowNum());
+        assertEquals(104, store.lastRowNum());
+        assertSame(rows[97], store.get(102));
+        assertNull(store.get(94));
+    }
+
+    @Test
+    public void skipsGapsAndKeepsBoundaries() {
+        RowStore store = new RowStore();
+        StreamRow a = row(), b = row(), c = row();
+        store.put(10, a);
+        store.put(14, b);
+        store.put(12, c);
+        assertEquals(3, store.size());
+        assertSame(a, store.remove(10));
+        assertEquals(12, store.firstRowNum());
+        assertSame(b, store.remove(14));
+        assertEquals(12, store.lastRowNum());
+        assertSame(c, store.removeFirst());
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void fallsBackForSparseRows() {
+        RowStore store = new RowStore();
+        StreamRow a = row(), b = row();
+        store.put(5, a);
+        store.put(1000000, b);
+        assertEquals(1000000, store.lastRowNum());
+        assertSame(b, store.get(1000000));
+        assertSame(a, store.removeFirst());
+        assertSame(b, store.removeFirst());
+        // back to the ring once emptied
+        store.put(3, a);
+        assertSame(a, store.get(3));
+    }
+
+    @Test
+    public void matchesTreeMap() {
+        Random random = new Random(42);
+        RowStore store = new RowStore();
+        TreeMap<Integer, StreamRow> expected = new TreeMap<>();
+        int next = 0;
+        for (int n = 0; n < 20000; n++) {
+            int op = random.nextInt(10);
+            if (op < 5) {
+                int rownum = next++;
+                if (random.nextInt(20) == 0) next += random.nextInt(40);
+                StreamRow row = row();
+                store.put(rownum, row);
+                expected.put(rownum, row);
+            } else if (op < 6) {
+                // out of order insert below or into the buffered range
+                int rownum = Math.max(0, next - random.nextInt(300));
+                StreamRow row = row();
+                store.put(rownum, row);
+                expected.put(rownum, row);
+            } else if (op < 8 && !expected.isEmpty()) {
+                assertSame(expected.pollFirstEntry().getValue(), store.removeFirst());
+            } else if (!expected.isEmpty()) {
+                int rownum = expected.firstKey() + random.nextInt(expected.lastKey() - expected.firstKey() + 1);
+                assertSame(expected.remove(rownum), store.remove(rownum));
+            }
+            assertEquals(expected.size(), store.size());
+            if (!expected.isEmpty()) {
+                assertEquals((int) expected.firstKey(), store.firstRowNum());
+                assertEquals((int) expected.lastKey(), store.lastRowNum());
+            }
+        }
+        List<StreamRow> rows = new ArrayList<>();
+        for (Iterator<StreamRow> iter = store.iterator(); iter.hasNext(); ) rows.add(iter.next());
+        assertEquals(new ArrayList<>(expected.values()), rows);
+        if (!expected.isEmpty()) {
+            int from = expected.firstKey() + 3, to = expected.lastKey() - 3;
+            List<StreamRow> range = new ArrayList<>();
+            for (Iterator<StreamRow> iter = store.iterator(from, to); iter.hasNext(); ) range.add(iter.next());
+            assertEquals(new ArrayList<>(expected.subMap(from, true, to, true).values()), range);
+        }
+        for (Map.Entry<Integer, StreamRow> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), store.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void iteratorRemovesRows() {
+        for (int last : new int[]{20, 1000000}) {
+            // the ring and, with a sparse row, the tree
+            RowStore store = new RowStore();
+            StreamRow[] rows = new StreamRow[10];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = row();
+                store.put(i == rows.length - 1 ? last : i, rows[i]);
+            }
+            int n = 0;
+            for (Iterator<StreamRow> iter = store.iterator(); iter.hasNext(); n++) {
+                assertSame(rows[n], iter.next());
+                if (n % 3 != 1) iter.remove();
+            }
+            assertEquals(rows.length, n);
+            assertEquals(3, store.size());
+            assertSame(rows[1], store.get(1));
+            assertSame(rows[4], store.get(4));
+            assertSame(rows[7], store.get(7));
+            assertNull(store.get(last));
+        }
+    }
+
+    private static StreamRow row() {
+        return new StreamRow(null, 1);
+    }
+}
@@ -0,0 +1,65 @@
+package excel.streaming;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSharedStrings {
+    @Test
+    public void addsEachStringOnce() {
+        SharedStrings strings = new SharedStrings(new String[0], 0, Long.MAX_VALUE);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, strings.add("s" + i));
+        }
+        for (int i = 0; i < 10000; i += 7) {
+            assertEquals(i, strings.add("s" + i));
+        }
+        assertEquals(10000, strings.size());
+    }
+
+    @Test
+    public void continuesAfterTemplateStrings() {
+        SharedStrings strings = new SharedStrings(new String[]{"a", null, "b"}, 5, Long.MAX_VALUE);
+        assertEquals(2, strings.add("b"));
+        assertEquals(3, strings.add("c"));
+        assertEquals(0, strings.add("a"));
+        assertEquals(4, strings.size());
+    }
+
+    @Test
+    public void stopsAddingAtMemoryLimit() {
+        SharedStrings strings = new SharedStrings(new String[0], 0, 1000);
+        int added = 0;
+        while (strings.add("string" + added) >= 0) added++;
+        assertTrue(added > 5);
+        assertEquals(-1, strings.add("another"));
+        assertEquals(0, strings.add("string0"));
+        assertEquals(added, strings.size());
+    }
+
+    @Test
+    public void writesPart() throws IOException {
+        SharedStrings strings = new SharedStrings(new String[]{"a"}, 1, Long.MAX_VALUE);
+        strings.add("a");
+        strings.add(" <b> ");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        strings.writeTo(out, "<si><t>a</t></si>".getBytes(StandardCharsets.UTF_8));
+        String xml = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(xml, xml.endsWith("count=\"3\" uniqueCount=\"2\"><si><t>a</t></si>"
+                + "<si><t xml:space=\"preserve\"> &lt;b&gt; </t></si></sst>"));
+    }
+
+    @Test
+    public void extractsItems() {
+        assertArrayEquals(new byte[0], SharedStrings.getItems(
+                "<?xml version=\"1.0\"?>\n<sst xmlns=\"x\" count=\"0\" uniqueCount=\"0\"/>".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("<si><t>a</t></si>", new String(SharedStrings.getItems(
+                "<sst count=\"1\"><si><t>a</t></si></sst>".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+    }
+}
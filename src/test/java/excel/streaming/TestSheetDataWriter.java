@@ -0,0 +1,219 @@
+package excel.streaming;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSheetDataWriter {
+    @Test
+    public void writesWholeNumbersWithoutFraction() {
+        assertEquals("42", formatDouble(42.0));
+        assertEquals("-7", formatDouble(-7.0));
+        assertEquals("0", formatDouble(0.0));
+        assertEquals("9007199254740991", formatDouble(9007199254740991.0));
+    }
+
+    @Test
+    public void writesShortFractions() {
+        assertEquals("0.1", formatDouble(0.1));
+        assertEquals("123.45", formatDouble(123.45));
+        assertEquals("-0.05", formatDouble(-0.05));
+        assertEquals("1.0E-10", formatDouble(1e-10));
+        assertEquals("1.0E20", formatDouble(1e20));
+    }
+
+    @Test
+    public void numbersRoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double v;
+            switch (i % 3) {
+                case 0: v = random.nextDouble(); break;
+                case 1: v = Math.round(random.nextGaussian() * 1e8) / 100.0; break;
+                default: v = Double.longBitsToDouble(random.nextLong()); break;
+            }
+            if (Double.isNaN(v) || Double.isInfinite(v)) continue;
+            assertEquals(v, Double.parseDouble(formatDouble(v)), 0.0);
+        }
+    }
+
+    @Test
+    public void writesLongCellValues() {
+        StreamWorkbook wb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) wb.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue(1234567890123L);
+        String xml = sheet.flushRowsUnchecked();
+        assertEquals("<row r=\"1\">\n<c r=\"A1\" t=\"n\"><v>1234567890123</v></c></row>\n", xml);
+    }
+
+    @Test
+    public void writesCellReferences() {
+        StreamWorkbook wb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) wb.createSheet();
+        Row row = sheet.createRow(41);
+        row.createCell(0).setCellValue(1);
+        row.createCell(27).setCellValue(2);
+        row.createCell(16383).setCellValue(3);
+        assertEquals("<row r=\"42\">\n<c r=\"A42\" t=\"n\"><v>1</v></c><c r=\"AB42\" t=\"n\"><v>2</v></c>"
+                + "<c r=\"XFD42\" t=\"n\"><v>3</v></c></row>\n", sheet.flushRowsUnchecked());
+    }
+
+    @Test
+    public void omitsContiguousReferencesInCompactMode() {
+        StreamWorkbook wb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) wb.createSheet();
+        wb.setCompactCellReferences(true);
+        for (int r : new int[]{0, 1, 3}) {
+            Row row = sheet.createRow(r);
+            row.createCell(0).setCellValue(1);
+            row.createCell(1).setCellValue(2);
+            row.createCell(3).setCellValue(3);
+        }
+        String cells = "<c t=\"n\"><v>1</v></c><c t=\"n\"><v>2</v></c><c r=\"D%1$d\" t=\"n\"><v>3</v></c></row>\n";
+        assertEquals("<row>\n" + String.format(cells, 1)
+                + "<row>\n" + String.format(cells, 2)
+                + "<row r=\"4\">\n" + String.format(cells, 4), sheet.flushRowsUnchecked());
+    }
+
+    @Test
+    public void escapesText() {
+        assertEquals("plain text", quote("plain text"));
+        assertEquals("a &lt;b&gt; &amp; &quot;c&quot;&#xa;d&#x9;e?", quote("a <b> & \"c\"\nd\te\u0001"));
+        assertEquals("&lt;", quote("<"));
+    }
+
+    @Test
+    public void writesNonAsciiTextAsUtf8() {
+        assertEquals("\u65e5\u672c &lt;\u0436&gt; \ud83d\ude00\u00a0",
+                new String(quoteBytes("\u65e5\u672c <\u0436> \ud83d\ude00\u00a0"), StandardCharsets.UTF_8));
+        assertEquals(3 + 3 + 2 + 4, quoteBytes("\u65e5\u672c\u0436\ud83d\ude00").length);
+        assertEquals("a?b?", quote("a\ud83db\ude00"));
+        assertEquals("?", quote("\uffff"));
+    }
+
+    @Test
+    public void writesCompactRowsLikeFullRows() {
+        StreamWorkbook wb = new StreamWorkbook();
+        CellStyle style = wb.createCellStyle();
+        style.setWrapText(true);
+        String[] xml = new String[2];
+        for (int n = 0; n < 2; n++) {
+            StreamSheet sheet = (StreamSheet) wb.createSheet();
+            sheet.setCompactCellStorage(n == 1);
+            Row row = sheet.createRow(3);
+            row.createCell(0).setCellValue(1.5);
+            row.createCell(1).setCellValue(" text ");
+            row.createCell(2).setCellValue(true);
+            row.createCell(4).setCellErrorValue(FormulaError.NA.getCode());
+            row.createCell(5).setCellFormula("A4*2");
+            row.createCell(6).setCellStyle(style);
+            row.createCell(7).setCellValue(Double.POSITIVE_INFINITY);
+            Cell cell = row.createCell(8);
+            cell.setCellValue(7);
+            cell.setCellFormula("A4+1");
+            cell.setCellStyle(style);
+            xml[n] = sheet.flushRowsUnchecked();
+        }
+        assertEquals(xml[0], xml[1]);
+    }
+
+    @Test
+    public void writesDeclaredColumnsLikeStyledCells() {
+        StreamWorkbook wb = new StreamWorkbook();
+        CellStyle style = wb.createCellStyle();
+        style.setWrapText(true);
+        ColumnSchema schema = new ColumnSchema();
+        schema.addColumn(0, Cell.CELL_TYPE_NUMERIC).setStyle(style);
+        schema.addColumn(1, Cell.CELL_TYPE_STRING);
+        schema.addColumn(2, Cell.CELL_TYPE_BOOLEAN).setStyle(style);
+        schema.addColumn(30, Cell.CELL_TYPE_NUMERIC);
+        for (boolean compactReferences : new boolean[]{false, true}) {
+            String[] xml = new String[2];
+            for (int n = 0; n < 2; n++) {
+                StreamSheet sheet = (StreamSheet) wb.createSheet();
+                sheet.getSheetDataWriter().setCompactReferences(compactReferences);
+                if (n == 1) sheet.setColumnSchema(schema);
+                for (int r = 0; r < 3; r++) {
+                    Row row = sheet.createRow(r);
+                    Cell cell = row.createCell(0);
+                    cell.setCellValue(r * 1.5);
+                    if (n == 0) cell.setCellStyle(style);
+                    row.createCell(1).setCellValue(" text" + r);
+                    cell = row.createCell(2);
+                    cell.setCellValue(r == 1);
+                    if (n == 0) cell.setCellStyle(style);
+                    row.createCell(3).setCellValue(r);
+                    row.createCell(30);
+                }
+                xml[n] = sheet.flushRowsUnchecked();
+            }
+            assertEquals(xml[0], xml[1]);
+        }
+    }
+
+    @Test
+    public void writesSharedFormulas() {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet();
+        SharedFormula formula = sheet.createSharedFormula("A1*2", CellRangeAddress.valueOf("B1:B3"));
+        for (int r = 0; r < 3; r++) {
+            formula.applyTo(sheet.createRow(r).createCell(1));
+        }
+        String xml = sheet.flushRowsUnchecked();
+        assertTrue(xml, xml.contains("<c r=\"B1\"><f t=\"shared\" ref=\"B1:B3\" si=\"0\">A1*2</f>"));
+        assertTrue(xml, xml.contains("<c r=\"B2\"><f t=\"shared\" si=\"0\"/>"));
+        assertTrue(xml, xml.contains("<c r=\"B3\"><f t=\"shared\" si=\"0\"/>"));
+    }
+
+    @Test
+    public void writesSharedFormulasOncePerPart() {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet();
+        SharedFormula formula = sheet.createSharedFormula("A1*2", CellRangeAddress.valueOf("B1:B2"));
+        for (int r = 0; r < 2; r++) {
+            formula.applyTo(sheet.createRow(r).createCell(1));
+        }
+        SheetDataWriter reused = new SheetDataWriter();
+        for (SheetDataWriter writer : new SheetDataWriter[]{new SheetDataWriter(), reused, reused}) {
+            writer.writeRow(0, (StreamRow) sheet.getRow(0));
+            writer.writeRow(1, (StreamRow) sheet.getRow(1));
+            writer.endSheetData();
+            String xml = writer.drainToString();
+            assertTrue(xml, xml.contains("<c r=\"B1\"><f t=\"shared\" ref=\"B1:B2\" si=\"0\">A1*2</f>"));
+            assertTrue(xml, xml.contains("<c r=\"B2\"><f t=\"shared\" si=\"0\"/>"));
+        }
+    }
+
+    private static byte[] quoteBytes(String s) {
+        SheetDataWriter writer = new SheetDataWriter();
+        writer.outputQuotedString(s);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writer.writeTo(out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String quote(String s) {
+        SheetDataWriter writer = new SheetDataWriter();
+        writer.outputQuotedString(s);
+        return writer.drainToString();
+    }
+
+    private static String formatDouble(double v) {
+        Utf8Buffer buffer = new Utf8Buffer(16);
+        buffer.writeDouble(v);
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package excel.streaming;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestStreamTemplate {
+    @Test
+    public void splitsAroundSheetData() {
+        assertSplit("<worksheet><cols/><sheetData>", "</sheetData><mergeCells/></worksheet>",
+                "<worksheet><cols/><sheetData></sheetData><mergeCells/></worksheet>");
+    }
+
+    @Test
+    public void expandsEmptySheetData() {
+        assertSplit("<worksheet>\u00e4<sheetData>\n", "</sheetData><pageMargins/></worksheet>",
+                "<worksheet>\u00e4<sheetData/><pageMargins/></worksheet>");
+    }
+
+    @Test
+    public void ignoresElementsWithSamePrefix() {
+        assertSplit("<worksheet><sheetDataX/><sheetData>\n", "</sheetData></worksheet>",
+                "<worksheet><sheetDataX/><sheetData /></worksheet>");
+    }
+
+    @Test
+    public void appendsMissingSheetData() {
+        assertSplit("<worksheet/><sheetData>\n", "</sheetData>", "<worksheet/>");
+    }
+
+    @Test
+    public void keepsCompressedNonSheetParts() throws Exception {
+        byte[] styles = "<styleSheet><fonts count=\"1\"/></styleSheet>".getBytes(StandardCharsets.UTF_8);
+        byte[] sheet = "<worksheet><sheetData/></worksheet>".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zip)) {
+            zos.putNextEntry(new ZipEntry("xl/styles.xml"));
+            zos.write(styles);
+            zos.putNextEntry(new ZipEntry("xl/worksheets/sheet1.xml"));
+            zos.write(sheet);
+        }
+        StreamTemplate.Part stylesPart = new StreamTemplate.Part("xl/styles.xml", -1, styles, null);
+        StreamTemplate.Part sheetPart = new StreamTemplate.Part("xl/worksheets/sheet1.xml", 0, sheet, sheet);
+        byte[] data = zip.toByteArray();
+        StreamTemplate.attachCompressedData(Arrays.asList(stylesPart, sheetPart), data, data.length);
+
+        assertNull(sheetPart._compressed);
+        assertEquals(ZipEntry.DEFLATED, stylesPart._method);
+        CRC32 crc = new CRC32();
+        crc.update(styles);
+        assertEquals(crc.getValue(), stylesPart._crc);
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(stylesPart._compressed);
+        byte[] inflated = new byte[styles.length];
+        assertEquals(styles.length, inflater.inflate(inflated));
+        assertTrue(inflater.finished());
+        assertArrayEquals(styles, inflated);
+    }
+
+    private static void assertSplit(String head, String tail, String worksheet) {
+        byte[][] fragments = StreamTemplate.splitWorksheet(worksheet.getBytes(StandardCharsets.UTF_8));
+        assertEquals(head, new String(fragments[0], StandardCharsets.UTF_8));
+        assertEquals(tail, new String(fragments[1], StandardCharsets.UTF_8));
+    }
+}
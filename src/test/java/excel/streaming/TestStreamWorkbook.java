@@ -1,16 +1,36 @@
 package excel.streaming;
 
 import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TestStreamWorkbook {
     @Test
@@ -24,6 +44,859 @@ public class TestStreamWorkbook {
         }
     }
 
+    @Test
+    public void multipleSheetsWrite() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        streamWb.createSheet("S1").createRow(0).createCell(0).setCellValue("first");
+        streamWb.createSheet("S2").createRow(0).createCell(0).setCellValue("second");
+        streamWb.setStreamSource(st -> Stream.of(st.flushRowsUnchecked()));
+        XSSFWorkbook xssfWb = (XSSFWorkbook) writeOutAndReadBack(streamWb);
+        assertEquals("first", xssfWb.getSheet("S1").getRow(0).getCell(0).getStringCellValue());
+        assertEquals("second", xssfWb.getSheet("S2").getRow(0).getCell(0).getStringCellValue());
+    }
+
+    @Test
+    public void stampedFromTemplate() throws IOException {
+        StreamWorkbook layout = new StreamWorkbook();
+        layout.createSheet("S1").setColumnWidth(0, 20 * 256);
+        StreamTemplate template = layout.compileTemplate();
+        for (int n = 1; n <= 2; n++) {
+            StreamWorkbook streamWb = template.createWorkbook();
+            StreamSheet sheet = (StreamSheet) streamWb.getSheet("S1");
+            final int rows = n;
+            streamWb.setStreamSource(st -> Stream.of(1, 2).limit(rows).map(i -> {
+                st.createRow(i).createCell(0).setCellValue("row" + i);
+                return st.flushRowsUnchecked();
+            }));
+            XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+            assertEquals(20 * 256, st.getColumnWidth(0));
+            assertEquals(rows, st.getLastRowNum());
+            assertEquals("row" + rows, st.getRow(rows).getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stampedWorkbookRejectsNewSheets() throws IOException {
+        StreamWorkbook layout = new StreamWorkbook();
+        layout.createSheet("S1");
+        layout.compileTemplate().createWorkbook().createSheet("S2");
+    }
+
+    @Test
+    public void stampedFromTwoThreads() throws Exception {
+        StreamWorkbook layout = new StreamWorkbook();
+        layout.createSheet("S1").setColumnWidth(0, 20 * 256);
+        short rotated = layout.createCellStyle(s -> s.setRotation((short) 90)).getIndex();
+        StreamTemplate template = layout.compileTemplate();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<XSSFWorkbook>> results = new ArrayList<>();
+            for (int n = 0; n < 2; n++) {
+                results.add(executor.submit(() -> {
+                    StreamWorkbook streamWb = template.createWorkbook();
+                    CellStyle style = streamWb.createCellStyle(s -> s.setRotation((short) 90));
+                    short format = streamWb.createDataFormat().getFormat("0.00");
+                    streamWb.setSheetWriter(st -> {
+                        for (int i = 0; i < 100; i++) {
+                            Cell cell = st.createRow(i).createCell(0);
+                            cell.setCellValue(i);
+                            cell.setCellStyle(style);
+                        }
+                    });
+                    assertEquals(2, format);
+                    return (XSSFWorkbook) writeOutAndReadBack(streamWb);
+                }));
+            }
+            for (Future<XSSFWorkbook> result : results) {
+                XSSFWorkbook wb = result.get();
+                assertEquals(layout.getNumCellStyles(), wb.getNumCellStyles());
+                assertEquals(rotated, wb.getSheet("S1").getRow(99).getCell(0).getCellStyle().getIndex());
+                assertEquals(90, wb.getSheet("S1").getRow(99).getCell(0).getCellStyle().getRotation());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(layout.getNumCellStyles(), template.getXSSFWorkbook().getNumCellStyles());
+    }
+
+    @Test
+    public void stampedBordersFromTwoThreads() throws Exception {
+        StreamWorkbook layout = new StreamWorkbook();
+        layout.createSheet("S1");
+        Consumer<CellStyle> thinBottom = s -> {
+            s.setBorderBottom(CellStyle.BORDER_THIN);
+            s.setFillPattern(CellStyle.SOLID_FOREGROUND);
+        };
+        short bordered = layout.createCellStyle(thinBottom).getIndex();
+        StylesTable styles = layout.getXSSFWorkbook().getStylesSource();
+        int borders = styles.getBorders().size();
+        int fills = styles.getFills().size();
+        // an existing style doesn't leave its border behind
+        assertEquals(bordered, layout.createCellStyle(thinBottom).getIndex());
+        assertEquals(borders, styles.getBorders().size());
+        StreamTemplate template = layout.compileTemplate();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<XSSFWorkbook>> results = new ArrayList<>();
+            for (int n = 0; n < 2; n++) {
+                results.add(executor.submit(() -> {
+                    StreamWorkbook streamWb = template.createWorkbook();
+                    CellStyle style = null;
+                    for (int i = 0; i < 100; i++) {
+                        style = streamWb.createCellStyle(thinBottom);
+                    }
+                    CellStyle last = style;
+                    streamWb.setSheetWriter(st -> st.createRow(0).createCell(0).setCellStyle(last));
+                    return (XSSFWorkbook) writeOutAndReadBack(streamWb);
+                }));
+            }
+            for (Future<XSSFWorkbook> result : results) {
+                XSSFWorkbook wb = result.get();
+                assertEquals(bordered, wb.getSheet("S1").getRow(0).getCell(0).getCellStyle().getIndex());
+                assertEquals(CellStyle.BORDER_THIN, wb.getSheet("S1").getRow(0).getCell(0).getCellStyle().getBorderBottom());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(borders, styles.getBorders().size());
+        assertEquals(fills, styles.getFills().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stampedWorkbookRejectsNewBorders() throws IOException {
+        StreamWorkbook layout = new StreamWorkbook();
+        layout.createSheet("S1");
+        StreamTemplate template = layout.compileTemplate();
+        StylesTable styles = template.getXSSFWorkbook().getStylesSource();
+        int borders = styles.getBorders().size();
+        try {
+            template.createWorkbook().createCellStyle(s -> s.setBorderTop(CellStyle.BORDER_DOUBLE));
+        } finally {
+            assertEquals(borders, styles.getBorders().size());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stampedWorkbookRejectsNewStyles() throws IOException {
+        StreamWorkbook layout = new StreamWorkbook();
+        layout.createSheet("S1");
+        layout.compileTemplate().createWorkbook().createCellStyle(s -> s.setRotation((short) 90));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stampedWorkbookRejectsLayoutChanges() throws IOException {
+        StreamWorkbook layout = new StreamWorkbook();
+        layout.createSheet("S1");
+        layout.compileTemplate().createWorkbook().getSheet("S1").setColumnWidth(0, 20 * 256);
+    }
+
+    @Test
+    public void directRowOutput() throws IOException {
+        StreamWorkbook streamWb = createWorkbook("S1", "value", IntStream.range(1, 5000).boxed());
+        streamWb.setDirectRowOutput(true);
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(4999, st.getLastRowNum());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("value" + i + "0", st.getRow(i).getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void directRowOutputReturnsNoXml() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        streamWb.setDirectRowOutput(true);
+        StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+        List<String> returned = new ArrayList<>();
+        streamWb.setStreamSource(st -> Stream.of(1, 2).map(i -> {
+            st.createRow(i).createCell(0).setCellValue(i);
+            String xml = st.flushRowsUnchecked();
+            returned.add(xml);
+            return xml;
+        }));
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(Arrays.asList("", ""), returned);
+        assertEquals(2.0, st.getRow(2).getCell(0).getNumericCellValue(), 0.0);
+        // outside of write the XML is returned
+        sheet.createRow(3).createCell(0).setCellValue(3);
+        assertTrue(sheet.flushRows().startsWith("<row r=\"4\""));
+    }
+
+    @Test
+    public void nonAsciiText() throws IOException {
+        for (boolean direct : new boolean[]{false, true}) {
+            StreamWorkbook streamWb = createWorkbook("S1", "\u65e5\u672c\ud83d\ude00", Stream.of(1));
+            streamWb.setDirectRowOutput(direct);
+            XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+            assertEquals("\u65e5\u672c\ud83d\ude0010", st.getRow(1).getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void sheetWriterPushesRows() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        streamWb.createSheet("S1");
+        streamWb.createSheet("S2");
+        streamWb.setSheetWriter(sheet -> {
+            RowWriter rows = sheet.openRowWriter();
+            for (int i = 0; i < 5000; i++) {
+                rows.createRow(i).createCell(0).setCellValue(sheet.getSheetName() + i);
+            }
+        });
+        XSSFWorkbook xssfWb = (XSSFWorkbook) writeOutAndReadBack(streamWb);
+        for (String name : new String[]{"S1", "S2"}) {
+            XSSFSheet st = xssfWb.getSheet(name);
+            assertEquals(4999, st.getLastRowNum());
+            for (int i = 0; i < 5000; i += 499) {
+                assertEquals(name + i, st.getRow(i).getCell(0).getStringCellValue());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rowWriterRejectsRowsOutOfOrder() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        streamWb.createSheet("S1");
+        streamWb.setSheetWriter(sheet -> {
+            RowWriter rows = sheet.openRowWriter();
+            rows.createRow(2);
+            rows.createRow(1);
+        });
+        streamWb.write(new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rowWriterOnlyOpenDuringWrite() {
+        ((StreamSheet) new StreamWorkbook().createSheet("S1")).openRowWriter();
+    }
+
+    @Test
+    public void rowAccessWindow() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        ((StreamSheet) streamWb.createSheet("S1")).setRowAccessWindow(3);
+        streamWb.setSheetWriter(sheet -> {
+            for (int i = 0; i < 1000; i++) {
+                sheet.createRow(i).createCell(0).setCellValue(i);
+                if (i >= 2) {
+                    // back-fill the running total two rows up
+                    Row row = sheet.getRow(i - 2);
+                    row.createCell(1).setCellValue((i - 2) * (i - 1) / 2);
+                }
+                assertTrue(sheet.getPhysicalNumberOfRows() - sheet.getSheetDataWriter().getNumberOfFlushedRows() <= 3);
+            }
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(999, st.getLastRowNum());
+        assertEquals(997 * 998 / 2, st.getRow(997).getCell(1).getNumericCellValue(), 0.0);
+        assertEquals(null, st.getRow(998).getCell(1));
+    }
+
+    @Test
+    public void rowAccessWindowBytes() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+        sheet.setRowAccessWindowBytes(10000);
+        List<String> flushed = new ArrayList<>();
+        streamWb.setStreamSource(st -> IntStream.range(0, 2000).mapToObj(i -> {
+            st.createRow(i).createCell(0).setCellValue("value" + i);
+            assertTrue(st._windowBytes <= 10000);
+            // rows leave the window on their own, only every 500th call flushes
+            return i % 500 == 499 ? st.flushRowsUnchecked() : "";
+        }));
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(1999, st.getLastRowNum());
+        for (int i = 0; i < 2000; i += 111) {
+            assertEquals("value" + i, st.getRow(i).getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void rowAccessWindowBytesOfReplacedRows() throws IOException {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet("S1");
+        sheet.setRowAccessWindowBytes(1000000);
+        for (int i = 0; i < 100; i++) {
+            sheet.createRow(0).createCell(0).setCellValue("value" + i);
+            sheet.createRow(1).createCell(0).setCellValue("value" + i);
+        }
+        // only the replaced row 0 is complete and counted
+        assertEquals(((StreamRow) sheet.getRow(0)).estimateSize(), sheet._windowBytes);
+        // a flushed row moved back into the sheet was not counted before
+        Row flushed = sheet.getRow(0);
+        sheet.flushRows(1);
+        long windowBytes = sheet._windowBytes;
+        flushed.setRowNum(2);
+        assertEquals(windowBytes, sheet._windowBytes);
+    }
+
+    @Test
+    public void rowIteratorRemovesRows() {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet("S1");
+        sheet.setRowAccessWindowBytes(1000000);
+        for (int i = 0; i < 10; i++) sheet.createRow(i).createCell(0).setCellValue("value" + i);
+        for (Iterator<Row> iter = sheet.rowIterator(); iter.hasNext(); ) {
+            if (iter.next().getRowNum() < 8) iter.remove();
+        }
+        assertEquals(8, sheet.getFirstRowNum());
+        // row 9 is not complete yet and row 8 is the only one counted
+        assertEquals(((StreamRow) sheet.getRow(8)).estimateSize(), sheet._windowBytes);
+    }
+
+    @Test
+    public void rowNumbers() throws IOException {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet("S1");
+        Row first = sheet.createRow(0);
+        Row second = sheet.createRow(1);
+        Row third = sheet.createRow(2);
+        assertEquals(1, second.getRowNum());
+        assertEquals(2, third.createCell(3).getRowIndex());
+
+        second.setRowNum(5);
+        assertEquals(5, second.getRowNum());
+        assertEquals(second, sheet.getRow(5));
+        assertEquals(null, sheet.getRow(1));
+        assertEquals(5, sheet.getLastRowNum());
+
+        sheet.removeRow(third);
+        assertEquals(null, sheet.getRow(2));
+        assertEquals(-1, sheet.getRowNum((StreamRow) third));
+
+        sheet.flushRows();
+        assertEquals(0, first.getRowNum());
+        assertEquals(-1, sheet.getRowNum((StreamRow) first));
+    }
+
+    @Test
+    public void compactCellStorage() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+        sheet.setCompactCellStorage(true);
+        sheet.setRowAccessWindow(100);
+        streamWb.setSheetWriter(st -> {
+            for (int i = 0; i < 1000; i++) {
+                Row row = st.createRow(i);
+                row.createCell(0).setCellValue(i);
+                row.createCell(1).setCellValue("text" + i);
+                row.createCell(3).setCellValue(i % 2 == 0);
+                if (i >= 50) {
+                    Cell cell = st.getRow(i - 50).getCell(0);
+                    assertEquals(i - 50, cell.getNumericCellValue(), 0.0);
+                    assertEquals(0, cell.getColumnIndex());
+                    assertEquals(i - 50, cell.getRowIndex());
+                    cell.setCellValue(cell.getNumericCellValue() * 2);
+                    st.getRow(i - 50).createCell(2).setCellFormula("A" + (i - 49) + "+1");
+                }
+            }
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(999, st.getLastRowNum());
+        assertEquals(20.0, st.getRow(10).getCell(0).getNumericCellValue(), 0.0);
+        assertEquals(960.0, st.getRow(960).getCell(0).getNumericCellValue(), 0.0);
+        assertEquals("text10", st.getRow(10).getCell(1).getStringCellValue());
+        assertEquals("A11+1", st.getRow(10).getCell(2).getCellFormula());
+        assertEquals(null, st.getRow(960).getCell(2));
+        assertTrue(st.getRow(10).getCell(3).getBooleanCellValue());
+    }
+
+    @Test
+    public void compactCellViews() {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet("S1");
+        sheet.setCompactCellStorage(true);
+        Row row = sheet.createRow(0);
+        Cell cell = row.createCell(20);
+        assertEquals(Cell.CELL_TYPE_BLANK, cell.getCellType());
+        assertEquals(cell, row.getCell(20));
+        assertEquals(21, row.getLastCellNum());
+        assertEquals(1, row.getPhysicalNumberOfCells());
+        cell.setCellValue("x");
+        assertEquals("x", row.getCell(20).getStringCellValue());
+        cell.setCellFormula("1+1");
+        // the view follows the cell into its full representation
+        assertEquals(Cell.CELL_TYPE_FORMULA, cell.getCellType());
+        assertEquals("1+1", row.getCell(20).getCellFormula());
+        row.removeCell(cell);
+        assertEquals(-1, row.getLastCellNum());
+        assertEquals(null, row.getCell(20));
+    }
+
+    @Test
+    public void rowRecycling() throws IOException {
+        for (boolean compact : new boolean[]{false, true}) {
+            StreamWorkbook streamWb = new StreamWorkbook();
+            StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+            sheet.setCompactCellStorage(compact);
+            sheet.setRowAccessWindow(10);
+            sheet.setRowRecycling(true);
+            CellStyle bold = streamWb.createCellStyle();
+            streamWb.setSheetWriter(st -> {
+                for (int i = 0; i < 1000; i++) {
+                    Row row = st.createRow(i);
+                    row.createCell(0).setCellValue(i);
+                    if (i % 2 == 0) {
+                        row.createCell(1).setCellValue("text" + i);
+                    } else {
+                        row.createCell(1).setCellValue(i % 3 == 0);
+                    }
+                    if (i % 5 == 0) {
+                        Cell cell = row.createCell(2);
+                        cell.setCellValue(-i);
+                        cell.setCellStyle(bold);
+                    }
+                }
+            });
+            XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+            assertEquals(999, st.getLastRowNum());
+            for (int i = 0; i < 1000; i++) {
+                XSSFRow row = st.getRow(i);
+                assertEquals(i, row.getCell(0).getNumericCellValue(), 0.0);
+                if (i % 2 == 0) {
+                    assertEquals("text" + i, row.getCell(1).getStringCellValue());
+                } else {
+                    assertEquals(i % 3 == 0, row.getCell(1).getBooleanCellValue());
+                }
+                if (i % 5 == 0) {
+                    assertEquals(-i, row.getCell(2).getNumericCellValue(), 0.0);
+                    assertEquals(bold.getIndex(), row.getCell(2).getCellStyle().getIndex());
+                } else {
+                    assertEquals(null, row.getCell(2));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rowRecyclingReusesFlushedRows() throws IOException {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet("S1");
+        sheet.setRowRecycling(true);
+        Row first = sheet.createRow(0);
+        Cell cell = first.createCell(0);
+        cell.setCellValue(1);
+        cell.setCellStyle(sheet.getWorkbook().createCellStyle());
+        sheet.flushRows(0);
+        Row second = sheet.createRow(1);
+        assertSame(first, second);
+        assertEquals(1, second.getRowNum());
+        assertEquals(-1, second.getLastCellNum());
+        assertEquals(null, second.getCell(0));
+        assertSame(cell, second.createCell(0));
+        assertEquals(Cell.CELL_TYPE_BLANK, cell.getCellType());
+        assertEquals(0, cell.getCellStyle().getIndex());
+
+        sheet.setRowRecycling(false);
+        sheet.flushRows(0);
+        assertNotSame(second, sheet.createRow(2));
+    }
+
+    @Test
+    public void columnBatch() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        streamWb.createSheet("S1");
+        CellStyle amountStyle = streamWb.createCellStyle();
+        streamWb.setSheetWriter(st -> {
+            st.openRowWriter().createRow(0).createCell(0).setCellValue("id");
+            long[] ids = new long[100];
+            String[] names = new String[100];
+            double[] amounts = new double[100];
+            boolean[] flags = new boolean[100];
+            ColumnBatch batch = new ColumnBatch(100);
+            batch.addColumn(0, ids, null);
+            batch.addColumn(1, names, null);
+            batch.addColumn(3, amounts, amountStyle);
+            batch.addColumn(4, flags, null);
+            for (int first = 0; first < 250; first += 100) {
+                int n = Math.min(100, 250 - first);
+                for (int i = 0; i < n; i++) {
+                    ids[i] = first + i;
+                    names[i] = (first + i) % 7 == 0 ? null : "name" + (first + i);
+                    amounts[i] = (first + i) % 11 == 0 ? Double.NaN
+                            : (first + i) % 13 == 0 ? Double.POSITIVE_INFINITY : (first + i) * 0.25;
+                    flags[i] = (first + i) % 2 == 0;
+                }
+                batch.setRowCount(n);
+                st.writeBatch(first + 1, batch);
+            }
+            Row total = st.createRow(251);
+            total.createCell(0).setCellValue("total");
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(251, st.getLastRowNum());
+        assertEquals("id", st.getRow(0).getCell(0).getStringCellValue());
+        assertEquals("total", st.getRow(251).getCell(0).getStringCellValue());
+        for (int i = 0; i < 250; i++) {
+            XSSFRow row = st.getRow(i + 1);
+            assertEquals(i, row.getCell(0).getNumericCellValue(), 0.0);
+            if (i % 7 == 0) {
+                assertEquals(null, row.getCell(1));
+            } else {
+                assertEquals("name" + i, row.getCell(1).getStringCellValue());
+            }
+            assertEquals(null, row.getCell(2));
+            if (i % 11 == 0) {
+                assertEquals(null, row.getCell(3));
+            } else if (i % 13 == 0) {
+                assertEquals(FormulaError.DIV0.getCode(), row.getCell(3).getErrorCellValue());
+            } else {
+                assertEquals(i * 0.25, row.getCell(3).getNumericCellValue(), 0.0);
+                assertEquals(amountStyle.getIndex(), row.getCell(3).getCellStyle().getIndex());
+            }
+            assertEquals(i % 2 == 0, row.getCell(4).getBooleanCellValue());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void columnBatchRejectsRowsOutOfOrder() throws IOException {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet("S1");
+        ColumnBatch batch = new ColumnBatch(2);
+        batch.addColumn(0, new double[]{1, 2}, null);
+        sheet.writeBatch(5, batch);
+        sheet.createRow(7);
+        sheet.writeBatch(6, batch);
+    }
+
+    @Test
+    public void columnSchema() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+        ColumnSchema schema = new ColumnSchema();
+        schema.addColumn(0, Cell.CELL_TYPE_NUMERIC).setHeader("Id");
+        schema.addColumn(1, Cell.CELL_TYPE_STRING).setHeader("Name").setWidth(30 * 256);
+        schema.addColumn(2, Cell.CELL_TYPE_NUMERIC).setHeader("Amount").setDataFormat("#,##0.00");
+        sheet.setColumnSchema(schema);
+        streamWb.setSheetWriter(st -> {
+            RowWriter rows = st.openRowWriter();
+            st.createHeaderRow(0);
+            for (int i = 1; i <= 100; i++) {
+                Row row = rows.createRow(i);
+                row.createCell(0).setCellValue(i);
+                row.createCell(1).setCellValue("name" + i);
+                row.createCell(2).setCellValue(i * 1.25);
+            }
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(30 * 256, st.getColumnWidth(1));
+        assertEquals("Amount", st.getRow(0).getCell(2).getStringCellValue());
+        assertEquals("General", st.getRow(0).getCell(2).getCellStyle().getDataFormatString());
+        assertEquals(100, st.getLastRowNum());
+        assertEquals("name50", st.getRow(50).getCell(1).getStringCellValue());
+        assertEquals(62.5, st.getRow(50).getCell(2).getNumericCellValue(), 0.0);
+        assertEquals("#,##0.00", st.getRow(50).getCell(2).getCellStyle().getDataFormatString());
+    }
+
+    @Test
+    public void columnSchemaReusesStyles() throws IOException {
+        StreamWorkbook layout = new StreamWorkbook();
+        CellStyle rotated = layout.createCellStyle(s -> s.setRotation((short) 45));
+        ColumnSchema schema = new ColumnSchema();
+        schema.addColumn(0, Cell.CELL_TYPE_NUMERIC).setDataFormat("#,##0.00").setWidth(20 * 256);
+        schema.addColumn(1, Cell.CELL_TYPE_NUMERIC).setDataFormat("#,##0.00").setStyle(rotated);
+        StreamSheet sheet = (StreamSheet) layout.createSheet("S1");
+        sheet.setColumnSchema(schema);
+        int styles = layout.getNumCellStyles();
+        sheet.setColumnSchema(schema);
+        assertEquals(styles, layout.getNumCellStyles());
+        // a stamped workbook finds the styles of the template
+        StreamWorkbook streamWb = layout.compileTemplate().createWorkbook();
+        ((StreamSheet) streamWb.getSheet("S1")).setColumnSchema(schema);
+        streamWb.setSheetWriter(st -> {
+            Row row = st.createRow(0);
+            row.createCell(0).setCellValue(1.5);
+            row.createCell(1).setCellValue(2.5);
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals("#,##0.00", st.getRow(0).getCell(0).getCellStyle().getDataFormatString());
+        assertEquals("#,##0.00", st.getRow(0).getCell(1).getCellStyle().getDataFormatString());
+        assertEquals(45, st.getRow(0).getCell(1).getCellStyle().getRotation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void columnSchemaRejectsFormulaColumns() {
+        new ColumnSchema().addColumn(0, Cell.CELL_TYPE_FORMULA);
+    }
+
+    @Test
+    public void createCellStyleReusesIdenticalStyles() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        CellStyle wrapped = streamWb.createCellStyle();
+        wrapped.setWrapText(true);
+        int styles = streamWb.getNumCellStyles();
+        assertEquals(wrapped.getIndex(), streamWb.createCellStyle(s -> s.setWrapText(true)).getIndex());
+        assertEquals(0, streamWb.createCellStyle(s -> { }).getIndex());
+        short format = streamWb.createDataFormat().getFormat("0.00");
+        CellStyle amount = streamWb.createCellStyle(s -> s.setDataFormat(format));
+        assertEquals(styles + 1, streamWb.getNumCellStyles());
+        Sheet sheet = streamWb.createSheet("S1");
+        for (int i = 0; i < 100; i++) {
+            Cell cell = sheet.createRow(i).createCell(0);
+            cell.setCellValue(i);
+            cell.setCellStyle(streamWb.createCellStyle(s -> s.setDataFormat(format)));
+        }
+        assertEquals(styles + 1, streamWb.getNumCellStyles());
+        assertEquals(amount.getIndex(), sheet.getRow(50).getCell(0).getCellStyle().getIndex());
+
+        // a shared style that was changed afterwards is no longer returned
+        wrapped.setWrapText(false);
+        assertTrue(streamWb.createCellStyle(s -> s.setWrapText(true)).getWrapText());
+    }
+
+    @Test
+    public void sharedStrings() throws IOException {
+        for (SharedStringsMode mode : SharedStringsMode.values()) {
+            StreamWorkbook streamWb = new StreamWorkbook();
+            streamWb.createSheet("S1");
+            streamWb.setSharedStringsMode(mode);
+            String[] states = {"open", "closed", " pending ", "a<b", "done"};
+            streamWb.setSheetWriter(st -> {
+                RowWriter rows = st.openRowWriter();
+                for (int i = 0; i < 1000; i++) {
+                    Row row = rows.createRow(i);
+                    row.createCell(0).setCellValue(states[i % states.length]);
+                    row.createCell(1).setCellValue("id" + i);
+                }
+            });
+            XSSFWorkbook wb = (XSSFWorkbook) writeOutAndReadBack(streamWb);
+            XSSFSheet st = wb.getSheet("S1");
+            for (int i = 0; i < 1000; i += 7) {
+                assertEquals(states[i % states.length], st.getRow(i).getCell(0).getStringCellValue());
+                assertEquals("id" + i, st.getRow(i).getCell(1).getStringCellValue());
+            }
+            int expected = mode == SharedStringsMode.INLINE ? 0 : mode == SharedStringsMode.SHARED ? 1005 : 5;
+            assertEquals(mode.name(), expected, wb.getSharedStringSource().getUniqueCount());
+        }
+    }
+
+    @Test
+    public void sharedStringsMemoryLimit() throws IOException {
+        StreamWorkbook streamWb = createWorkbook("S1", "value", IntStream.range(0, 1000).boxed());
+        streamWb.setSharedStringsMode(SharedStringsMode.SHARED);
+        streamWb.setSharedStringsMemoryLimit(10000);
+        XSSFWorkbook wb = (XSSFWorkbook) writeOutAndReadBack(streamWb);
+        XSSFSheet st = wb.getSheet("S1");
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("value" + i + "0", st.getRow(i).getCell(0).getStringCellValue());
+        }
+        int shared = wb.getSharedStringSource().getUniqueCount();
+        assertTrue(String.valueOf(shared), shared > 0 && shared < 1000);
+    }
+
+    @Test
+    public void sharedFormula() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+        sheet.setCompactCellStorage(true);
+        SharedFormula amount = sheet.createSharedFormula("B2*C2", CellRangeAddress.valueOf("D2:E101"));
+        streamWb.setSheetWriter(st -> {
+            RowWriter rows = st.openRowWriter();
+            for (int i = 1; i <= 100; i++) {
+                Row row = rows.createRow(i);
+                row.createCell(1).setCellValue(i);
+                row.createCell(2).setCellValue(2);
+                // the first rows leave the formula out, the last rows spill to column E
+                if (i >= 5) amount.applyTo(row.createCell(3));
+                if (i >= 50) amount.applyTo(row.createCell(4));
+            }
+            assertEquals("C101*D101", st.getRow(100).getCell(4).getCellFormula());
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(null, st.getRow(4).getCell(3));
+        assertEquals("B6*C6", st.getRow(5).getCell(3).getCellFormula());
+        assertEquals("B60*C60", st.getRow(59).getCell(3).getCellFormula());
+        assertEquals("C51*D51", st.getRow(50).getCell(4).getCellFormula());
+        assertEquals("C101*D101", st.getRow(100).getCell(4).getCellFormula());
+    }
+
+    @Test
+    public void sharedFormulaKeepsCachedValue() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+        SharedFormula formula = sheet.createSharedFormula("A1", CellRangeAddress.valueOf("B1:B4"));
+        streamWb.setSheetWriter(st -> {
+            Cell number = st.createRow(0).createCell(1);
+            number.setCellValue(7);
+            formula.applyTo(number);
+            Cell text = st.createRow(1).createCell(1);
+            text.setCellValue("seven");
+            formula.applyTo(text);
+            Cell bool = st.createRow(2).createCell(1);
+            bool.setCellValue(true);
+            formula.applyTo(bool);
+            Cell error = st.createRow(3).createCell(1);
+            error.setCellFormula("1/0");
+            error.setCellErrorValue(FormulaError.DIV0.getCode());
+            formula.applyTo(error);
+            assertEquals(Cell.CELL_TYPE_ERROR, error.getCachedFormulaResultType());
+            assertEquals("A4", error.getCellFormula());
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(7, st.getRow(0).getCell(1).getNumericCellValue(), 0);
+        assertEquals("seven", st.getRow(1).getCell(1).getStringCellValue());
+        assertTrue(st.getRow(2).getCell(1).getBooleanCellValue());
+        assertEquals(FormulaError.DIV0.getCode(), st.getRow(3).getCell(1).getErrorCellValue());
+        assertEquals("A3", st.getRow(2).getCell(1).getCellFormula());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sharedFormulaOutsideRange() {
+        StreamSheet sheet = (StreamSheet) new StreamWorkbook().createSheet("S1");
+        sheet.createSharedFormula("A1+1", CellRangeAddress.valueOf("B1:B10")).applyTo(sheet.createRow(10).createCell(1));
+    }
+
+    @Test
+    public void formulaEvaluation() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        StreamSheet sheet = (StreamSheet) streamWb.createSheet("S1");
+        sheet.setRowAccessWindow(10);
+        sheet.setFormulaEvaluation(true);
+        SharedFormula rounded = sheet.createSharedFormula("ROUND(B1/3,2)", CellRangeAddress.valueOf("I1:I100"));
+        streamWb.setSheetWriter(st -> {
+            for (int i = 0; i < 100; i++) {
+                Row row = st.createRow(i);
+                int r = i + 1;
+                row.createCell(1).setCellValue(i);
+                row.createCell(2).setCellValue(2);
+                row.createCell(3).setCellFormula("B" + r + "*C" + r);
+                row.createCell(4).setCellFormula("IF(B" + r + ">50,\"big\",\"small\")&\"!\"");
+                row.createCell(5).setCellFormula("B" + r + ">10");
+                row.createCell(6).setCellFormula("B" + r + "/0");
+                // refers to a flushed row, keeps its value
+                if (i > 0) row.createCell(7).setCellFormula("B" + (r - 1) + "+1");
+                rounded.applyTo(row.createCell(8));
+            }
+        });
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        Row row = st.getRow(60);
+        assertEquals(120, row.getCell(3).getNumericCellValue(), 0);
+        assertEquals("big!", row.getCell(4).getStringCellValue());
+        assertEquals("small!", st.getRow(5).getCell(4).getStringCellValue());
+        assertTrue(row.getCell(5).getBooleanCellValue());
+        assertEquals("B61/0", row.getCell(6).getCellFormula());
+        assertEquals(Cell.CELL_TYPE_ERROR, row.getCell(6).getCachedFormulaResultType());
+        assertEquals(FormulaError.DIV0.getCode(), row.getCell(6).getErrorCellValue());
+        assertEquals("B60+1", row.getCell(7).getCellFormula());
+        assertEquals(0, row.getCell(7).getNumericCellValue(), 0);
+        assertEquals("ROUND(B61/3,2)", row.getCell(8).getCellFormula());
+        assertEquals(20, row.getCell(8).getNumericCellValue(), 0);
+        assertEquals(32.67, st.getRow(98).getCell(8).getNumericCellValue(), 0);
+    }
+
+    @Test
+    public void leanPackage() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        streamWb.setSharedStringsMode(SharedStringsMode.SHARED);
+        streamWb.createSheet("S1");
+        streamWb.createSheet("Data & more");
+        streamWb.setSheetWriter(st -> {
+            for (int i = 0; i < 100; i++) {
+                Row row = st.createRow(i);
+                row.createCell(0).setCellValue("value" + i % 10);
+                row.createCell(1).setCellValue(i);
+            }
+        });
+        XSSFWorkbook wb = (XSSFWorkbook) writeOutAndReadBack(streamWb);
+        assertTrue(streamWb.isLean());
+        assertEquals(2, wb.getNumberOfSheets());
+        assertEquals("Data & more", wb.getSheetName(1));
+        assertEquals("value9", wb.getSheetAt(1).getRow(99).getCell(0).getStringCellValue());
+        assertEquals(99, wb.getSheetAt(0).getRow(99).getCell(1).getNumericCellValue(), 0);
+        assertEquals(10, wb.getSharedStringSource().getUniqueCount());
+    }
+
+    @Test
+    public void leanPackageCreatesModelOnDemand() throws IOException {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        Sheet sheet = streamWb.createSheet("S1");
+        assertTrue(streamWb.isLean());
+        CellStyle style = streamWb.createCellStyle();
+        style.setRotation((short) 90);
+        assertEquals(sheet, streamWb.getSheet("S1"));
+        streamWb.setSheetWriter(st -> st.createRow(0).createCell(0).setCellStyle(style));
+        XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+        assertEquals(90, st.getRow(0).getCell(0).getCellStyle().getRotation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void leanPackageDuplicateSheetName() {
+        StreamWorkbook streamWb = new StreamWorkbook();
+        streamWb.createSheet("S1");
+        streamWb.createSheet("s1");
+    }
+
+    @Test
+    public void compressionProfiles() throws IOException {
+        for (CompressionProfile profile : CompressionProfile.values()) {
+            StreamWorkbook streamWb = createWorkbook("S1", "value", IntStream.range(1, 5000).boxed());
+            streamWb.setCompressionProfile(profile);
+            XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+            assertEquals(4999, st.getLastRowNum());
+            assertEquals("value49990", st.getRow(4999).getCell(0).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void parallelCompression() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (CompressionProfile profile : CompressionProfile.values()) {
+                StreamWorkbook streamWb = createWorkbook("S1", "value", IntStream.range(1, 20000).boxed());
+                streamWb.setCompressionProfile(profile);
+                streamWb.setCompressionExecutor(executor);
+                XSSFSheet st = ((XSSFWorkbook) writeOutAndReadBack(streamWb)).getSheet("S1");
+                assertEquals(19999, st.getLastRowNum());
+                for (int i = 0; i < 20000; i += 997) {
+                    assertEquals("value" + i + "0", st.getRow(i).getCell(0).getStringCellValue());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelSheets() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            StreamWorkbook streamWb = new StreamWorkbook();
+            for (int s = 0; s < 5; s++) {
+                streamWb.createSheet("S" + s);
+            }
+            streamWb.setSheetExecutor(executor);
+            streamWb.setStreamSource(st -> IntStream.range(0, 3000).mapToObj(i -> {
+                st.createRow(i).createCell(0).setCellValue(st.getSheetName() + "-" + i);
+                return st.flushRowsUnchecked();
+            }));
+            XSSFWorkbook xssfWb = (XSSFWorkbook) writeOutAndReadBack(streamWb);
+            for (int s = 0; s < 5; s++) {
+                XSSFSheet st = xssfWb.getSheetAt(s);
+                assertEquals("S" + s, st.getSheetName());
+                assertEquals(2999, st.getLastRowNum());
+                assertEquals("S" + s + "-2999", st.getRow(2999).getCell(0).getStringCellValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void writesValidZipDirectory() throws IOException {
+        File file = File.createTempFile("stream", ".xlsx");
+        try {
+            StreamWorkbook streamWb = createWorkbook("S1", "value", Stream.of(1, 2, 3));
+            streamWb.setCompressionProfile(CompressionProfile.STORED);
+            try (OutputStream out = new FileOutputStream(file)) {
+                streamWb.write(out);
+            }
+            try (ZipFile zip = new ZipFile(file)) {
+                ZipEntry sheet = zip.getEntry("xl/worksheets/sheet1.xml");
+                assertEquals(ZipEntry.DEFLATED, sheet.getMethod());
+                assertEquals(ZipEntry.STORED, zip.getEntry("[Content_Types].xml").getMethod());
+                try (InputStream in = zip.getInputStream(sheet)) {
+                    int size = 0;
+                    while (in.read() >= 0) size++;
+                    assertEquals(sheet.getSize(), size);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
     private StreamWorkbook createWorkbook(String sheetName, String prefix, Stream<Integer> stream) {
         StreamWorkbook wb = new StreamWorkbook();
         Sheet sheet = wb.createSheet(sheetName);